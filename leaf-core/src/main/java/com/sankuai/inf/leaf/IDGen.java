@@ -1,16 +1,26 @@
 package com.sankuai.inf.leaf;
 
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.Result;
 
 public interface IDGen {
 
     /**
-     * 获取该业务的 key 的下一个 ID，如果没开启 snowflake，则 ID 为 0
+     * 获取该业务的 key 的下一个 ID，如果没开启 snowflake，则 ID 为 0。
+     * 号段模式为 key 开启租用（leaf.segment.lease.size）时，该 key 在本机发出的 ID 不再递增
      * @param key
      * @return
      */
     Result get(String key);
 
+    /**
+     * 批量获取该业务的 key 的 n 个 ID，以若干段连续号段的形式返回
+     * @param key
+     * @param n 需要的 ID 个数
+     * @return
+     */
+    BatchResult getBatch(String key, int n);
+
     /**
      * 主要是对 snowflake 算法进行初始化
      * @return
@@ -0,0 +1,91 @@
+package com.sankuai.inf.leaf.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 批量发号的结果，ID 以若干段连续号段 IDRange 表示，而不是 N 个 Result 对象。
+ * 发号失败时 code 为异常码，与 Result 中异常时的 id 含义一致
+ */
+public class BatchResult {
+    private long code;
+    private Status status;
+    private List<IDRange> ranges;
+
+    public BatchResult() {
+        this.ranges = new ArrayList<IDRange>(2);
+    }
+
+    public BatchResult(List<IDRange> ranges) {
+        this.ranges = ranges;
+        this.status = Status.SUCCESS;
+    }
+
+    public BatchResult(long code, Status status) {
+        this();
+        this.code = code;
+        this.status = status;
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    public void setCode(long code) {
+        this.code = code;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public List<IDRange> getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(List<IDRange> ranges) {
+        this.ranges = ranges;
+    }
+
+    /**
+     * 所有号段包含的 ID 总数
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (IDRange range : ranges) {
+            size += range.getCount();
+        }
+        return size;
+    }
+
+    /**
+     * 将号段展开为 ID 数组
+     * @return
+     */
+    public long[] toArray() {
+        long[] ids = new long[size()];
+        int i = 0;
+        for (IDRange range : ranges) {
+            // 按个数展开，stride 为 0 的号段也能展开为 count 个相同的 ID
+            for (int k = 0; k < range.getCount(); k++) {
+                ids[i++] = range.getStart() + (long) k * range.getStride();
+            }
+        }
+        return ids;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("BatchResult{");
+        sb.append("code=").append(code);
+        sb.append(", status=").append(status);
+        sb.append(", ranges=").append(ranges);
+        sb.append('}');
+        return sb.toString();
+    }
+}
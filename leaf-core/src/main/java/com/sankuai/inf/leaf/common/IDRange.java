@@ -0,0 +1,78 @@
+package com.sankuai.inf.leaf.common;
+
+/**
+ * 一段等间隔的 ID 号，start、start + stride、...、start + (count - 1) * stride，用于批量发号时紧凑地表示多个 ID。
+ * stride 为 1 时即连续的 [start, start + count)，为 0 时即 count 个 start（ZeroIDGen 返回的 count 个 0）
+ */
+public class IDRange {
+    /**
+     * 起始 ID（包含）
+     */
+    private long start;
+
+    /**
+     * 该段包含的 ID 个数
+     */
+    private int count;
+
+    /**
+     * 相邻 ID 的间隔
+     */
+    private int stride = 1;
+
+    public IDRange() {
+
+    }
+
+    public IDRange(long start, int count) {
+        this(start, count, 1);
+    }
+
+    public IDRange(long start, int count, int stride) {
+        this.start = start;
+        this.count = count;
+        this.stride = stride;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public void setStart(long start) {
+        this.start = start;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public void setStride(int stride) {
+        this.stride = stride;
+    }
+
+    /**
+     * 结束 ID（不包含），即最后一个 ID 之后按 stride 的下一个 ID
+     * @return
+     */
+    public long getEnd() {
+        return start + (long) count * stride;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("IDRange{");
+        sb.append("start=").append(start);
+        sb.append(", count=").append(count);
+        sb.append(", stride=").append(stride);
+        sb.append('}');
+        return sb.toString();
+    }
+}
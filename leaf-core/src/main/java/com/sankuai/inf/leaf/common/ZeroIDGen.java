@@ -2,17 +2,49 @@ package com.sankuai.inf.leaf.common;
 
 import com.sankuai.inf.leaf.IDGen;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 不开启 snowflake 算法，则返回 id 为 0
  */
 public class ZeroIDGen implements IDGen {
+    /**
+     * 一次批量获取的最大 ID 数，与 SegmentIDGenImpl 的默认值一致
+     */
+    private int maxBatchSize = 10000;
+
     @Override
     public Result get(String key) {
         return new Result(0, Status.SUCCESS);
     }
 
+    /**
+     * 与 get 一致，返回 n 个 0，以一段间隔为 0 的号段表示；n 需在 1 到 maxBatchSize 之间，否则返回 -4
+     */
+    @Override
+    public BatchResult getBatch(String key, int n) {
+        if (n <= 0 || n > maxBatchSize) {
+            return new BatchResult(-4, Status.EXCEPTION);
+        }
+        List<IDRange> ranges = new ArrayList<IDRange>(1);
+        ranges.add(new IDRange(0, n, 0));
+        return new BatchResult(ranges);
+    }
+
     @Override
     public boolean init() {
         return true;
     }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive, got " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
 }
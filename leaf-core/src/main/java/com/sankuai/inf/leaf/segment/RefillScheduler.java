@@ -0,0 +1,204 @@
+package com.sankuai.inf.leaf.segment;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 号段装载调度器，替代原来最大线程数不受限的线程池：
+ * 1. 工作线程数固定，一般与数据源连接池大小一致，数据库抖动时不会为每个 key 创建一个线程去抢连接；
+ * 2. 等待中的装载任务按号段预计发完的时间排序，越快发完的 key 越先装载；
+ * 3. 同一个 key 由 SegmentBuffer#threadRunning 去重，队列中每个 key 最多一个任务；
+ * 4. 队列达到 maxQueueSize 时拒绝提交，由发号线程在下一次发号时重新尝试。
+ */
+public class RefillScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(RefillScheduler.class);
+
+    /**
+     * 默认工作线程数
+     */
+    public static final int DEFAULT_WORKERS = 5;
+
+    /**
+     * 默认最大排队任务数
+     */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 10000;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int workers;
+
+    private final int maxQueueSize;
+
+    /**
+     * 提交顺序，预计发完时间相同时先提交的先执行
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * 因队列已满被拒绝的次数
+     */
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * 已执行完的装载任务数
+     */
+    private final AtomicLong refillCount = new AtomicLong();
+
+    /**
+     * 已执行完的任务从提交到执行完的累计耗时，单位纳秒
+     */
+    private final AtomicLong refillTimeNanos = new AtomicLong();
+
+    /**
+     * 已执行完的任务在队列中的累计等待时间，单位纳秒
+     */
+    private final AtomicLong queueTimeNanos = new AtomicLong();
+
+    public RefillScheduler() {
+        this(DEFAULT_WORKERS, DEFAULT_MAX_QUEUE_SIZE);
+    }
+
+    public RefillScheduler(int workers, int maxQueueSize) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive, got " + workers);
+        }
+        if (maxQueueSize < 1) {
+            throw new IllegalArgumentException("maxQueueSize must be positive, got " + maxQueueSize);
+        }
+        this.workers = workers;
+        this.maxQueueSize = maxQueueSize;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new SegmentIDGenImpl.UpdateThreadFactory());
+        // 空闲时回收工作线程
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 提交一个装载任务
+     *
+     * @param timeToExhaustionMillis 当前号段预计多久后发完，越小越先执行
+     * @param task 装载任务
+     * @return 队列已满或调度器已关闭时返回 false，调用方需要自行复位去重标记
+     */
+    public boolean submit(long timeToExhaustionMillis, Runnable task) {
+        if (executor.getQueue().size() >= maxQueueSize) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        long now = System.nanoTime();
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(Math.min(timeToExhaustionMillis, TimeUnit.DAYS.toMillis(1)));
+        try {
+            executor.execute(new RefillTask(deadline, sequence.getAndIncrement(), now, task));
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            logger.warn("refill task rejected", e);
+            return false;
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getRefillCount() {
+        return refillCount.get();
+    }
+
+    /**
+     * 装载任务从提交到执行完的平均耗时，单位毫秒
+     */
+    public double getAvgRefillMillis() {
+        long count = refillCount.get();
+        return count == 0 ? 0 : refillTimeNanos.get() / 1000000.0 / count;
+    }
+
+    /**
+     * 装载任务在队列中的平均等待时间，单位毫秒
+     */
+    public double getAvgQueueMillis() {
+        long count = refillCount.get();
+        return count == 0 ? 0 : queueTimeNanos.get() / 1000000.0 / count;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RefillScheduler{");
+        sb.append("workers=").append(workers);
+        sb.append(", active=").append(getActiveCount());
+        sb.append(", queueSize=").append(getQueueSize());
+        sb.append(", maxQueueSize=").append(maxQueueSize);
+        sb.append(", rejected=").append(getRejectedCount());
+        sb.append(", refills=").append(getRefillCount());
+        sb.append(", avgRefillMillis=").append(String.format("%.2f", getAvgRefillMillis()));
+        sb.append(", avgQueueMillis=").append(String.format("%.2f", getAvgQueueMillis()));
+        sb.append('}');
+        return sb.toString();
+    }
+
+    /**
+     * 按预计发完时间排序的装载任务
+     */
+    private class RefillTask implements Runnable, Comparable<RefillTask> {
+        private final long deadline;
+        private final long seq;
+        private final long submitNanos;
+        private final Runnable task;
+
+        RefillTask(long deadline, long seq, long submitNanos, Runnable task) {
+            this.deadline = deadline;
+            this.seq = seq;
+            this.submitNanos = submitNanos;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                task.run();
+            } finally {
+                long end = System.nanoTime();
+                queueTimeNanos.addAndGet(start - submitNanos);
+                refillTimeNanos.addAndGet(end - submitNanos);
+                refillCount.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(RefillTask o) {
+            // deadline 由 nanoTime 计算，比较差值以避免溢出
+            long diff = deadline - o.deadline;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return seq < o.seq ? -1 : (seq == o.seq ? 0 : 1);
+        }
+    }
+}
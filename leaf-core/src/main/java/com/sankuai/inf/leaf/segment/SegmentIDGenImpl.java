@@ -1,10 +1,18 @@
 package com.sankuai.inf.leaf.segment;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IDRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.common.Utils;
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
 import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
 import com.sankuai.inf.leaf.segment.model.*;
+import com.sankuai.inf.leaf.segment.policy.DurationStepPolicy;
+import com.sankuai.inf.leaf.segment.policy.PrefetchPolicy;
+import com.sankuai.inf.leaf.segment.policy.RatioPrefetchPolicy;
+import com.sankuai.inf.leaf.segment.policy.StepPolicy;
 import org.perf4j.StopWatch;
 import org.perf4j.slf4j.Slf4JStopWatch;
 import org.slf4j.Logger;
@@ -12,7 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SegmentIDGenImpl implements IDGen {
     private static final Logger logger = LoggerFactory.getLogger(SegmentIDGenImpl.class);
@@ -32,21 +40,26 @@ public class SegmentIDGenImpl implements IDGen {
      */
     private static final long EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL = -3;
 
+    /**
+     * 批量发号时数量不合法的异常码
+     */
+    private static final long EXCEPTION_ID_ILLEGAL_BATCH_SIZE = -4;
+
     /**
      * 最大步长不超过 100,0000
      */
     private static final int MAX_STEP = 1000000;
 
     /**
-     * 一个 Segment 维持时间为15分钟
+     * 一个号段至少能分给多少次租用，每次租用的 ID 数不超过号段 step 的 1/LEASES_PER_SEGMENT，
+     * 避免 step 较小时一个号段被少数几个线程租光
      */
-    private static final long SEGMENT_DURATION = 15 * 60 * 1000L;
+    private static final int LEASES_PER_SEGMENT = 16;
 
     /**
-     * 创建核心线程为 5 的线程池，用于执行双 buffer 中的另外一个 buffer
+     * 号段装载调度器，工作线程数固定，按号段预计发完的时间优先装载
      */
-    private ExecutorService service = new ThreadPoolExecutor(5, Integer.MAX_VALUE, 60L,
-            TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new UpdateThreadFactory());
+    private RefillScheduler refillScheduler = new RefillScheduler();
 
     /**
      * 初始化是否成功标记
@@ -56,10 +69,193 @@ public class SegmentIDGenImpl implements IDGen {
     /**
      * 存储每个业务 key 的双 buffer，存储所有业务key对应双buffer号段，所以是基于内存的发号方式
      */
-    private Map<String, SegmentBuffer> cache = new ConcurrentHashMap<String, SegmentBuffer>();
+    private ConcurrentMap<String, SegmentBuffer> cache = new ConcurrentHashMap<String, SegmentBuffer>();
+
+    /**
+     * 正在从数据库查询的未知业务 key，同一个 key 的并发请求共用一次查询
+     */
+    private ConcurrentMap<String, FutureTask<SegmentBuffer>> loadingTags = new ConcurrentHashMap<String, FutureTask<SegmentBuffer>>();
+
+    /**
+     * 数据库中不存在的业务 key 及其过期时间，过期前不再查询数据库
+     */
+    private ConcurrentMap<String, Long> missingTags = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * 不存在的业务 key 的缓存时间，单位毫秒
+     */
+    private long missingTagTtlMillis = 1000;
+
+    /**
+     * 最多记录的不存在的业务 key 数，记满后不再按需查询数据库，直到定时同步清理掉过期的记录，
+     * 避免大量随机 key 撑大 missingTags 并让每次请求都访问数据库
+     */
+    private int maxMissingTags = 1000;
+
+    /**
+     * 全量同步业务 key 的间隔，用于发现数据库中已删除的 key，单位毫秒
+     */
+    private long fullSyncIntervalMillis = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * 增量同步时查询起点向前多取的时间，单位毫秒
+     */
+    private long syncOverlapMillis = TimeUnit.MINUTES.toMillis(2);
+
+    /**
+     * 上次同步成功的时间
+     */
+    private volatile long lastSyncTime;
+
+    /**
+     * 上次全量同步成功的时间
+     */
+    private volatile long lastFullSyncTime;
 
     private IDAllocDao dao;
 
+    /**
+     * 异步分配号段的 DAO，不为 null 时异步装载号段。装载仍通过调度器按预计发完时间排序、受队列上限约束，
+     * 调度器的工作线程发起分配后即返回，数据库往返期间是否占用线程取决于 DAO 的实现
+     */
+    private AsyncIDAllocDao asyncDao;
+
+    /**
+     * 当前号段发完时，等待异步装载完成的最长时间，单位毫秒
+     */
+    private long waitTimeoutMillis = 10;
+
+    /**
+     * 默认每个业务 key 的号段环深度，包括当前号段在内最多装载的号段数，2 即双 buffer
+     */
+    private int bufferDepth = 2;
+
+    /**
+     * 按业务 key 单独配置的号段环深度，未配置的 key 使用 bufferDepth
+     */
+    private Map<String, Integer> tagBufferDepths = new HashMap<String, Integer>();
+
+    /**
+     * 步长策略，默认根据上一个号段的发号耗时调整步长
+     */
+    private StepPolicy stepPolicy = new DurationStepPolicy();
+
+    /**
+     * 预装载策略，默认与原来一致，号段发出 10% 时开始装载下一个号段；
+     * LatencyAwarePrefetchPolicy 根据发号速率和装载耗时决定剩余多少 ID 时装载
+     */
+    private PrefetchPolicy prefetchPolicy = new RatioPrefetchPolicy();
+
+    /**
+     * 一次事务最多合并装载的 key 数，为 1 表示不合并，每个 key 单独装载
+     */
+    private int refillBatchSize = 1;
+
+    /**
+     * 合并装载前等待其他 key 加入的时间，单位毫秒
+     */
+    private long refillBatchWindowMillis = 2;
+
+    /**
+     * 等待合并装载的 buffer，队列中的 buffer 的 threadRunning 均为 true，不会重复加入
+     */
+    private Queue<SegmentBuffer> pendingRefills = new ConcurrentLinkedQueue<SegmentBuffer>();
+
+    /**
+     * pendingRefills 中的 buffer 数
+     */
+    private AtomicInteger pendingRefillCount = new AtomicInteger();
+
+    /**
+     * 已提交还没结束的合并装载任务数，包括等待聚集、排队和执行中的任务，不超过调度器的工作线程数
+     */
+    private AtomicInteger batchRefills = new AtomicInteger();
+
+    /**
+     * 还没从 pendingRefills 取 buffer 的合并装载任务数
+     */
+    private AtomicInteger waitingBatchRefills = new AtomicInteger();
+
+    /**
+     * 等待 refillBatchWindowMillis 后再把合并装载任务提交到调度器，聚集期间不占用调度器的工作线程
+     */
+    private ScheduledExecutorService batchWindowTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "Thread-Segment-Batch-Window");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * 默认最大步长
+     */
+    private int maxStep = MAX_STEP;
+
+    /**
+     * 按业务 key 单独配置的最小步长，未配置的 key 使用数据库中的 step
+     */
+    private Map<String, Integer> tagMinSteps = new HashMap<String, Integer>();
+
+    /**
+     * 按业务 key 单独配置的最大步长，未配置的 key 使用 maxStep
+     */
+    private Map<String, Integer> tagMaxSteps = new HashMap<String, Integer>();
+
+    /**
+     * 按业务 key 配置的子行数，热点 key 拆分为 key#0 到 key#(K-1) 多行，分散多个节点装载时的行锁竞争
+     */
+    private Map<String, Integer> tagSubRows = new HashMap<String, Integer>();
+
+    /**
+     * 从子行装载号段的耗时超过该值时，认为该子行竞争激烈，下次装载换到下一个子行，单位毫秒
+     */
+    private long subRowSlowMillis = 100;
+
+    /**
+     * 一次批量获取的最大 ID 数，避免一次请求取光号段环或展开为过大的数组
+     */
+    private int maxBatchSize = 10000;
+
+    /**
+     * 默认每个线程一次从号段租用的 ID 数，为 0 表示不租用。开启租用后：
+     * 1. 同一个 key 在本机发出的 ID 不再递增，各线程从自己租用的 ID 段发号；
+     * 2. 线程已租用但还没发出的 ID，在线程结束或 key 被删除时丢失；
+     * 3. 租用的 ID 段保存在每个 buffer 的 ThreadLocal 中，条目数为 key 数 * 发号线程数，随线程池中的线程长期存在
+     */
+    private int leaseSize = 0;
+
+    /**
+     * 按业务 key 单独配置的租用 ID 数，未配置的 key 使用 leaseSize
+     */
+    private Map<String, Integer> tagLeaseSizes = new HashMap<String, Integer>();
+
+    /**
+     * 是否在初始化时预热，预热完成后才算初始化成功
+     */
+    private boolean warmUpEnabled = false;
+
+    /**
+     * 需要预热的业务 key，为空表示预热所有 key
+     */
+    private Set<String> warmUpTags = new HashSet<String>();
+
+    /**
+     * 预热时同时装载的 key 数，一般不超过数据源连接池大小
+     */
+    private int warmUpConcurrency = RefillScheduler.DEFAULT_WORKERS;
+
+    /**
+     * 预热时是否同时装载第二个号段，为 false 时只装载当前号段
+     */
+    private boolean warmUpNextSegment = false;
+
+    /**
+     * 预热的最长等待时间，超时未预热完的 key 在第一次发号时再装载，单位毫秒
+     */
+    private long warmUpTimeoutMillis = TimeUnit.SECONDS.toMillis(60);
+
     /**
      * 线程工厂，返回一个线程，通过继承 ThreadFactory 接口，对线程名重命名
      */
@@ -82,16 +278,20 @@ public class SegmentIDGenImpl implements IDGen {
         logger.info("Init ...");
         // 将数据库中所有的业务 tag 加载到缓存中，并且删除缓存中没用的业务 tag，
         // 这时才算初始化成功
-        updateCacheFromDb();
+        fullSyncCacheFromDb(System.currentTimeMillis());
+        // 预热号段，避免启动后每个 key 的第一次发号都同步访问数据库
+        if (warmUpEnabled) {
+            warmUp();
+        }
         initOK = true;
-        // 创建一个线程，每隔 60 秒执行 updateCacheFromDb，将数据库新加业务的 key 添加到缓存中
+        // 创建一个线程，每隔 60 秒执行 updateCacheFromDb，增量同步数据库新加业务的 key 到缓存中
         updateCacheFromDbAtEveryMinute();
         return initOK;
     }
 
     /**
      * 创建一个核心为 1 的线程池，定时执行 updateCacheFromDb 方法，即每隔 60 秒将
-     * 数据库中新加的业务 key 初始化双 buffer，并添加到缓存，同时删去没用的 key
+     * 数据库中新加的业务 key 初始化双 buffer，并添加到缓存，每隔 fullSyncIntervalMillis 删去没用的 key
      */
     private void updateCacheFromDbAtEveryMinute() {
         ScheduledExecutorService service = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
@@ -112,11 +312,33 @@ public class SegmentIDGenImpl implements IDGen {
     }
 
     /**
+     * 同步数据库中的业务 key 到缓存。距上次全量同步超过 fullSyncIntervalMillis 时全量同步，
+     * 否则只按 create_time 增量同步新增的 key。包内可见，便于测试直接触发一次同步
+     */
+    void updateCacheFromDb() {
+        long now = System.currentTimeMillis();
+        if (now - lastFullSyncTime >= fullSyncIntervalMillis) {
+            fullSyncCacheFromDb(now);
+        } else {
+            deltaSyncCacheFromDb(now);
+        }
+        // 清理已过期的不存在 key
+        for (Map.Entry<String, Long> entry : missingTags.entrySet()) {
+            if (entry.getValue() < now) {
+                missingTags.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 全量同步：
      * 1. 为数据库中每个业务 key（tag），初始双 buffer，并添加到缓存 map 中；
-     * 2. 遍历检查，将不存在于数据库的缓存 key 删去。
+     * 2. 遍历检查，将不存在于数据库的缓存 key 删去。表中没有删除标记，删除的 key 只能在全量同步时发现。
+     *
+     * @param now 本次同步开始的时间
      */
-    private void updateCacheFromDb() {
-        logger.info("update cache from db");
+    private void fullSyncCacheFromDb(long now) {
+        logger.info("full sync cache from db");
         StopWatch sw = new Slf4JStopWatch();
         try {
             // 获取数据库中所有的业务 key，即 biz_tag
@@ -124,37 +346,84 @@ public class SegmentIDGenImpl implements IDGen {
             if (dbTags == null || dbTags.isEmpty()) {
                 return;
             }
-            List<String> cacheTags = new ArrayList<String>(cache.keySet());
-            List<String> insertTags = new ArrayList<String>(dbTags);
-            List<String> removeTags = new ArrayList<String>(cacheTags);
-
             // db 中新加的 tags 灌进 cache
-            // 将缓存中已存在的 tag 从 dbTage 中移除，添加新的 tag 和初
-            // 始化对应的双 buffer 到缓存中
-            insertTags.removeAll(cacheTags);
-            for (String tag : insertTags) {
-                SegmentBuffer buffer = new SegmentBuffer();
-                buffer.setKey(tag);
-                // 默认获取第一个 buffer
-                Segment segment = buffer.getCurrent();
-                segment.setValue(new AtomicLong(0));
-                segment.setMax(0);
-                segment.setStep(0);
-                cache.put(tag, buffer);
-                logger.info("Add tag {} from db to IdCache, SegmentBuffer {}", tag, buffer);
-            }
-            // cache 中已失效的 tags 从 cache 删除，遍历 dbTags，将不
-            // 存在于数据库中 的 tag 从缓存中移除
-            removeTags.removeAll(dbTags);
-            for (String tag : removeTags) {
-                cache.remove(tag);
-                logger.info("Remove tag {} from IdCache", tag);
+            Set<String> dbTagSet = new HashSet<String>(dbTags.size());
+            for (String dbTag : dbTags) {
+                dbTagSet.add(logicalTag(dbTag));
+            }
+            for (String tag : dbTagSet) {
+                addTagIfAbsent(tag);
+            }
+            // cache 中已失效的 tags 从 cache 删除
+            for (String tag : cache.keySet()) {
+                if (!dbTagSet.contains(tag)) {
+                    cache.remove(tag);
+                    logger.info("Remove tag {} from IdCache", tag);
+                }
+            }
+            lastSyncTime = now;
+            lastFullSyncTime = now;
+        } catch (Exception e) {
+            logger.warn("full sync cache from db exception", e);
+        } finally {
+            sw.stop("fullSyncCacheFromDb");
+        }
+    }
+
+    /**
+     * 增量同步：只查询上次同步以来新建的 key，将其中缓存里没有的添加到缓存。
+     * 按不会被修改的 create_time 查询，只返回新增的 key，不会返回近期装载过号段的 key。
+     * 查询起点向前多取 syncOverlapMillis，容忍应用与数据库的时钟偏差和晚提交的事务。
+     * 增量查询失败（如表中还没有 create_time 列）时退回全量同步，新增的 key 不会因此推迟到下次全量同步才发现
+     *
+     * @param now 本次同步开始的时间
+     */
+    private void deltaSyncCacheFromDb(long now) {
+        StopWatch sw = new Slf4JStopWatch();
+        try {
+            List<String> createdTags = dao.getTagsCreatedSince(new Date(lastSyncTime - syncOverlapMillis));
+            for (String tag : createdTags) {
+                addTagIfAbsent(logicalTag(tag));
             }
+            lastSyncTime = now;
         } catch (Exception e) {
-            logger.warn("update cache from db exception", e);
+            logger.warn("delta sync cache from db exception, fall back to full sync", e);
+            // 复位全量同步时间，本次全量同步也失败时，下次同步仍走全量
+            lastFullSyncTime = 0;
+            fullSyncCacheFromDb(now);
         } finally {
-            sw.stop("updateCacheFromDb");
+            sw.stop("deltaSyncCacheFromDb");
+        }
+    }
+
+    /**
+     * 将数据库中子行的 biz_tag 转换为业务 key，即去掉 #下标 后缀，只处理配置了子行数的 key
+     *
+     * @param dbTag 数据库中的 biz_tag
+     * @return
+     */
+    private String logicalTag(String dbTag) {
+        int index = dbTag.lastIndexOf(SegmentBuffer.SUB_ROW_SEPARATOR);
+        if (index > 0 && getSubRows(dbTag.substring(0, index)) > 1) {
+            return dbTag.substring(0, index);
+        }
+        return dbTag;
+    }
+
+    /**
+     * 缓存中没有该 tag 时创建 buffer 并添加到缓存，发号请求可能已按需加载了该 tag，不覆盖已有的 buffer
+     *
+     * @param tag 业务 key
+     */
+    private void addTagIfAbsent(String tag) {
+        if (cache.containsKey(tag)) {
+            return;
         }
+        SegmentBuffer buffer = createBuffer(tag);
+        if (cache.putIfAbsent(tag, buffer) == null) {
+            logger.info("Add tag {} from db to IdCache, SegmentBuffer {}", tag, buffer);
+        }
+        missingTags.remove(tag);
     }
 
     @Override
@@ -164,225 +433,1119 @@ public class SegmentIDGenImpl implements IDGen {
         if (!initOK) {
             return new Result(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);
         }
-        // 如果该缓存包含业务 key
-        if (cache.containsKey(key)) {
-            // cache 为全局变量，从 cache 获取 key 不为局部变量
-            SegmentBuffer buffer = cache.get(key);
-            // 使用双重检查锁，检查 SegmentBuffer 是否已用构造函数创建，并进行零值初始化
-            if (!buffer.isInitOk()) {
-                // 同个业务 key 获取 ID 的服务需要先获取锁
-                synchronized (buffer) {
-                    if (!buffer.isInitOk()) {
-                        try {
-                            // 从数据库配置更新 buffer 的当前 ID 值、最大 ID 值，以及动态调整步长
-                            updateSegmentFromDb(key, buffer.getCurrent());
-                            logger.info("Init buffer. Update leafkey {} {} from db", key, buffer.getCurrent());
-                            buffer.setInitOk(true);
-                        } catch (Exception e) {
-                            logger.warn("Init buffer {} exception", buffer.getCurrent(), e);
-                        }
-                    }
-                }
-            }
+        // 从缓存获取业务 key 的 buffer，缓存中没有时到数据库查询一次
+        SegmentBuffer buffer;
+        try {
+            buffer = getBuffer(key);
+        } catch (ExecutionException e) {
+            // 查询数据库失败，与 key 不存在区分开
+            return new Result(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);
+        }
+        if (buffer != null) {
+            initBuffer(key, buffer);
             // 发号和准备另一个 buffer，当前 buffer 发号完了，就切换到另一个 buffer 进行发号
-            return getIdFromSegmentBuffer(cache.get(key));
+            return getIdFromSegmentBuffer(buffer);
         }
-        // 缓存不包含业务 key，返回异常错误
+        // 数据库中也不存在该业务 key，返回异常错误
         return new Result(EXCEPTION_ID_KEY_NOT_EXISTS, Status.EXCEPTION);
     }
 
     /**
-     * 从数据库配置更新 buffer 的当前 ID 值、最大 ID 值和步长。当第三次及以后调用，
-     * 会有更新时间戳，使用当前时间减去更新时间戳，来动态调整步长 step，即增加或减少
-     * 发号 ID 数，目的是降低数据库的访问频率，因为取号是从数据库取的
+     * 批量获取 n 个 ID，每次从当前号段用一次 getAndAdd 预留一段连续的 ID，
+     * 当前号段不够时切换到另一个 buffer 继续预留，结果以号段的形式返回
      *
      * @param key 业务 key
-     * @param segment ID 号段
+     * @param n 需要的 ID 个数，需在 1 到 maxBatchSize 之间
+     * @return
      */
-    public void updateSegmentFromDb(String key, Segment segment) {
-        StopWatch sw = new Slf4JStopWatch();
-        // 获取 buffer
-        SegmentBuffer buffer = segment.getBuffer();
-        LeafAlloc leafAlloc;
-        // buffer 为 false，表示还没初始化，进行第一次初始化
-        if (!buffer.isInitOk()) {
-            // 从数据库更新该业务 key 的 maxId
-            leafAlloc = dao.updateMaxIdAndGetLeafAlloc(key);
-            // 获取数据库中已配置好的 step
-            buffer.setStep(leafAlloc.getStep());
-            // leafAlloc 中的 step 为 DB 中的 step
-            buffer.setMinStep(leafAlloc.getStep());
-        } else if (buffer.getUpdateTimestamp() == 0) {
-            // buffer 的更新时间戳为 0，表示为第二次调用 updateSegmentFromDb，
-            // 同上更新该业务 key 的 maxId
-            leafAlloc = dao.updateMaxIdAndGetLeafAlloc(key);
-            // 更新 buffer 当前时间
-            buffer.setUpdateTimestamp(System.currentTimeMillis());
-            // leafAlloc 中的 step 为 DB 中的 step
-            buffer.setMinStep(leafAlloc.getStep());
-        } else {
-            // 第三次及之后调用 updateSegmentFromDb，动态调整步长 step，即增加或减少发号 ID 数，
-            // 目的是降低数据库的访问频率，因为取号是从数据库取的
-            long duration = System.currentTimeMillis() - buffer.getUpdateTimestamp();
-            int nextStep = buffer.getStep();
-            // 表示现在的步长太小，在 SEGMENT_DURATION（默认 15 分钟）内发完，
-            // 将步长乘以 2，即发号的数量增加，但不能超过 MAX_STEP
-            if (duration < SEGMENT_DURATION) {
-                if (nextStep * 2 > MAX_STEP) {
-                    //do nothing
-                } else {
-                    nextStep = nextStep * 2;
-                }
-            } else if (duration < SEGMENT_DURATION * 2) {
-                // 在 15 ~ 30 分钟则不用
-                //do nothing with nextStep
-            } else {
-                // 大于 30 分钟，则将步长减少一半
-                nextStep = nextStep / 2 >= buffer.getMinStep() ? nextStep / 2 : nextStep;
-            }
-            logger.info("leafKey[{}], step[{}], duration[{}mins], nextStep[{}]", key, buffer.getStep(), String.format("%.2f",((double)duration / (1000 * 60))), nextStep);
-            LeafAlloc temp = new LeafAlloc();
-            temp.setKey(key);
-            temp.setStep(nextStep);
-            // 更新数据库的 maxId
-            leafAlloc = dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp);
-            buffer.setUpdateTimestamp(System.currentTimeMillis());
-            // 设置动态调整好的步长（根据发号消耗完的时间调整步长大小）
-            buffer.setStep(nextStep);
-            // leafAlloc 的 step 为 DB 中的 step
-            buffer.setMinStep(leafAlloc.getStep());
-        }
-        // must set value before set max
-        // 设置当前号段的值，包括 ID 值、最大 ID、步长等
-        long value = leafAlloc.getMaxId() - buffer.getStep();
-        segment.getValue().set(value);
-        segment.setMax(leafAlloc.getMaxId());
-        segment.setStep(buffer.getStep());
-        sw.stop("updateSegmentFromDb", key + " " + segment);
+    @Override
+    public BatchResult getBatch(final String key, int n) {
+        if (!initOK) {
+            return new BatchResult(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);
+        }
+        if (n <= 0 || n > maxBatchSize) {
+            return new BatchResult(EXCEPTION_ID_ILLEGAL_BATCH_SIZE, Status.EXCEPTION);
+        }
+        SegmentBuffer buffer;
+        try {
+            buffer = getBuffer(key);
+        } catch (ExecutionException e) {
+            return new BatchResult(EXCEPTION_ID_IDCACHE_INIT_FALSE, Status.EXCEPTION);
+        }
+        if (buffer != null) {
+            initBuffer(key, buffer);
+            return getIdsFromSegmentBuffer(buffer, n);
+        }
+        return new BatchResult(EXCEPTION_ID_KEY_NOT_EXISTS, Status.EXCEPTION);
     }
 
     /**
-     * 发号和准备另一个 buffer，当前 buffer 发号完了，就切换到另一个 buffer 进行发号
+     * 创建业务 key 的 buffer，当前号段为零值号段，第一次发号时再从数据库装载
      *
-     * @param buffer
+     * @param tag 业务 key
      * @return
      */
-    public Result getIdFromSegmentBuffer(final SegmentBuffer buffer) {
-        // 使用自旋，当前 buffer 号发完就会切换到另一个 buffer，然后在判断一次，获取 ID 值
-        while (true) {
-            try {
-                // 读锁，多个线程能进行读操作
-                buffer.rLock().lock();
-                // 获取当前 Segment，判断另外一个 buffer 是否准备好
-                final Segment segment = buffer.getCurrent();
-                // 如果下面条件满足，则创建另外一个线程配置好另一个 buffer 的当前 ID 值、最大 ID 值和步长
-                // 另一个 buffer 号段没准备好；
-                // 当前 buffer 号段发号已超过 10%，这里 id、maxId、step 都用 volatile 修饰，保证可见性；
-                // 使用 CAS，判断 buffer 是否已经启动另一个线程，false 表示没启动
-                if (!buffer.isNextReady() && (segment.getIdle() < 0.9 * segment.getStep()) && buffer.getThreadRunning().compareAndSet(false, true)) {
-                    service.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            // buffer 数组中 nextPos，对应另一个 buffer
-                            Segment next = buffer.getSegments()[buffer.nextPos()];
-                            boolean updateOk = false;
-                            try {
-                                // 从数据库配置更新 buffer 的当前 ID 值、最大 ID 值，以及动态调整步长
-                                updateSegmentFromDb(buffer.getKey(), next);
-                                updateOk = true;
-                                logger.info("update segment {} from db {}", buffer.getKey(), next);
-                            } catch (Exception e) {
-                                logger.warn(buffer.getKey() + " updateSegmentFromDb exception", e);
-                            } finally {
-                                if (updateOk) {
-                                    // 写锁，这是线程池创建另外一个线程去获取写锁，因为
-                                    // 读写锁不允许锁升级，即获取读锁后在获取写锁
-                                    buffer.wLock().lock();
-                                    // buffer 配置好，则设为 true
-                                    buffer.setNextReady(true);
-                                    // 线程是否在运行中，false
-                                    buffer.getThreadRunning().set(false);
-                                    buffer.wLock().unlock();
-                                } else {
-                                    buffer.getThreadRunning().set(false);
-                                }
-                            }
-                        }
-                    });
-                }
-                // 发号
-                long value = segment.getValue().getAndIncrement();
-                // 如果当前 ID 值小于最大 ID 值，表示号没发完
-                if (value < segment.getMax()) {
-                    return new Result(value, Status.SUCCESS);
-                }
-            } finally {
-                buffer.rLock().unlock();
+    private SegmentBuffer createBuffer(String tag) {
+        SegmentBuffer buffer = new SegmentBuffer();
+        buffer.setKey(tag);
+        buffer.setDepth(getBufferDepth(tag));
+        buffer.setMaxStep(getMaxStep(tag));
+        buffer.setLeaseSize(getLeaseSize(tag));
+        int subRows = getSubRows(tag);
+        if (subRows > 1) {
+            // 按本机 IP 选择优先装载的子行，不同节点分散到不同子行
+            buffer.setSubRows(subRows);
+            buffer.setSubRow(((Utils.getIp() + SegmentBuffer.SUB_ROW_SEPARATOR + tag).hashCode() & Integer.MAX_VALUE) % subRows);
+        }
+        return buffer;
+    }
+
+    /**
+     * 获取业务 key 的 buffer。缓存中没有时，不等定时任务刷新，直接到数据库查询该 key：
+     * 1. 同一个 key 的并发请求只有一个线程查询数据库，其他线程等待同一个 FutureTask 的结果；
+     * 2. 数据库中不存在的 key 缓存 missingTagTtlMillis 毫秒，避免不存在的 key 反复访问数据库；
+     * 3. 记录的不存在的 key 达到 maxMissingTags 时不再查询，按不存在处理。
+     *
+     * @param key 业务 key
+     * @return 不存在时返回 null
+     * @throws ExecutionException 查询数据库失败
+     */
+    private SegmentBuffer getBuffer(final String key) throws ExecutionException {
+        SegmentBuffer buffer = cache.get(key);
+        if (buffer != null) {
+            return buffer;
+        }
+        Long expireTime = missingTags.get(key);
+        if (expireTime != null && expireTime > System.currentTimeMillis()) {
+            return null;
+        }
+        if (expireTime == null && missingTags.size() >= maxMissingTags) {
+            logger.warn("Too many missing tags, skip loading tag {} from db", key);
+            return null;
+        }
+        FutureTask<SegmentBuffer> task = new FutureTask<SegmentBuffer>(new Callable<SegmentBuffer>() {
+            @Override
+            public SegmentBuffer call() {
+                return loadBuffer(key);
             }
-            // 如果当前 ID 值大于最大 ID 值，表示发号完了，先判断 buffer 的另外一个线程是否已配置好另一个 buffer
-            waitAndSleep(buffer);
+        });
+        FutureTask<SegmentBuffer> loading = loadingTags.putIfAbsent(key, task);
+        if (loading == null) {
+            // 由当前线程查询数据库，完成后移除，之后的请求直接命中 cache 或 missingTags
+            loading = task;
             try {
-                // 当前 buffer 上写锁，因为当前 buffer 号段发完了，于是要切换另一个 buffer
-                buffer.wLock().lock();
-                // 获取当前 buffer 号段
-                final Segment segment = buffer.getCurrent();
-                // 先判断 buffer 号段的值是否小于最大 ID 值，在多线程情况下，可能已经切换到另一个
-                // buffer，所以先上锁判断该 buffer 是否发完号了
-                long value = segment.getValue().getAndIncrement();
-                if (value < segment.getMax()) {
-                    return new Result(value, Status.SUCCESS);
-                }
-                // 另一个 buffer 已准备好，将指向当前 buffer
-                // 的指针改为指向另一个 buffer 的指针
-                if (buffer.isNextReady()) {
-                    // (currentPos + 1) % 2
-                    buffer.switchPos();
-                    buffer.setNextReady(false);
-                } else {
-                    // 另外一个 buffer 没准备好，则报异常，包括前面的 waitAndSleep 超时
-                    logger.error("Both two segments in {} are not ready!", buffer);
-                    return new Result(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
-                }
+                task.run();
             } finally {
-                buffer.wLock().unlock();
+                loadingTags.remove(key, task);
             }
         }
+        try {
+            return loading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        } catch (ExecutionException e) {
+            logger.warn("Load tag {} from db exception", key, e.getCause());
+            throw e;
+        }
     }
 
     /**
-     * 获取当前 buffer 的 threadRunning 属性，为 true，表示有线程正在配置另一个 buffer，
-     * 则循环计数等待，直到超时异常。为 false，表示已经配置好另个一 buffer。
-     * @param buffer 当前发号号段
+     * 从数据库查询单个业务 key，存在则放入缓存，不存在则记录到 missingTags
+     *
+     * @param key 业务 key
+     * @return
      */
-    private void waitAndSleep(SegmentBuffer buffer) {
-        int roll = 0;
-        while (buffer.getThreadRunning().get()) {
-            roll += 1;
-            if (roll > 10000) {
-                try {
-                    TimeUnit.MILLISECONDS.sleep(10);
-                    break;
-                } catch (InterruptedException e) {
-                    logger.warn("Thread {} Interrupted",Thread.currentThread().getName());
-                    break;
+    private SegmentBuffer loadBuffer(String key) {
+        SegmentBuffer buffer = cache.get(key);
+        if (buffer != null) {
+            return buffer;
+        }
+        // 拆分为子行的 key 以第一个子行判断是否存在
+        LeafAlloc leafAlloc = dao.getLeafAlloc(getSubRows(key) > 1 ? key + SegmentBuffer.SUB_ROW_SEPARATOR + 0 : key);
+        if (leafAlloc == null) {
+            missingTags.put(key, System.currentTimeMillis() + missingTagTtlMillis);
+            return null;
+        }
+        buffer = createBuffer(key);
+        SegmentBuffer prev = cache.putIfAbsent(key, buffer);
+        if (prev != null) {
+            return prev;
+        }
+        missingTags.remove(key);
+        logger.info("Add tag {} from db to IdCache on demand, SegmentBuffer {}", key, buffer);
+        return buffer;
+    }
+
+    /**
+     * 使用双重检查锁，检查 SegmentBuffer 是否已从数据库装载第一个号段
+     *
+     * @param key 业务 key
+     * @param buffer 该业务 key 的双 buffer
+     */
+    private void initBuffer(String key, SegmentBuffer buffer) {
+        if (!buffer.isInitOk()) {
+            // 同个业务 key 获取 ID 的服务需要先获取锁
+            synchronized (buffer) {
+                if (!buffer.isInitOk()) {
+                    try {
+                        // 从数据库装载第一个号段，作为当前号段
+                        buffer.setCurrent(updateSegmentFromDb(key, buffer));
+                        logger.info("Init buffer. Update leafkey {} {} from db", key, buffer.getCurrent());
+                        buffer.setInitOk(true);
+                    } catch (Exception e) {
+                        logger.warn("Init buffer {} exception", buffer.getCurrent(), e);
+                    }
                 }
             }
         }
     }
 
-    public List<LeafAlloc> getAllLeafAllocs() {
-        return dao.getAllLeafAllocs();
+    /**
+     * 预热：以不超过 warmUpConcurrency 的并发为需要预热的 key 装载第一个号段，
+     * 开启 warmUpNextSegment 时再装载第二个号段。最多等待 warmUpTimeoutMillis，
+     * 超时或装载失败的 key 在第一次发号时再装载
+     */
+    private void warmUp() {
+        List<SegmentBuffer> buffers = new ArrayList<SegmentBuffer>();
+        for (SegmentBuffer buffer : cache.values()) {
+            if (warmUpTags.isEmpty() || warmUpTags.contains(buffer.getKey())) {
+                buffers.add(buffer);
+            }
+        }
+        if (buffers.isEmpty()) {
+            return;
+        }
+        logger.info("warm up {} tags, concurrency {}", buffers.size(), warmUpConcurrency);
+        StopWatch sw = new Slf4JStopWatch();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(warmUpConcurrency, buffers.size()), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Thread-Segment-WarmUp-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        final AtomicInteger warmed = new AtomicInteger();
+        try {
+            for (final SegmentBuffer buffer : buffers) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        warmUpBuffer(buffer);
+                        if (buffer.isInitOk()) {
+                            warmed.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(warmUpTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warn("warm up timeout after {} ms", warmUpTimeoutMillis);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        } finally {
+            sw.stop("warmUp");
+        }
+        logger.info("warm up finished, {}/{} tags ready", warmed.get(), buffers.size());
     }
 
-    public Map<String, SegmentBuffer> getCache() {
-        return cache;
+    /**
+     * 预热一个 key：装载当前号段，需要时再装载第二个号段。
+     * 第二个号段与异步装载一样通过 threadRunning 去重，不会与发号触发的装载重复
+     *
+     * @param buffer 需要预热的 buffer
+     */
+    private void warmUpBuffer(SegmentBuffer buffer) {
+        initBuffer(buffer.getKey(), buffer);
+        if (!warmUpNextSegment || !buffer.isInitOk() || buffer.getDepth() < 2) {
+            return;
+        }
+        if (buffer.getThreadRunning().compareAndSet(false, true)) {
+            try {
+                if (buffer.getReadyCount(buffer.getCurrent()) == 0) {
+                    Segment next = updateSegmentFromDb(buffer.getKey(), buffer);
+                    buffer.appendSegment(next);
+                    logger.info("warm up segment {} from db {}", buffer.getKey(), next);
+                }
+            } catch (Exception e) {
+                logger.warn(buffer.getKey() + " warm up next segment exception", e);
+            } finally {
+                finishRefill(buffer);
+            }
+        }
     }
 
-    public IDAllocDao getDao() {
+    /**
+     * 从数据库装载一个新的号段，包括当前 ID 值、最大 ID 值和步长。当第三次及以后调用，
+     * 会有更新时间戳，使用当前时间减去更新时间戳，来动态调整步长 step，即增加或减少
+     * 发号 ID 数，目的是降低数据库的访问频率，因为取号是从数据库取的
+     *
+     * @param key 业务 key
+     * @param buffer 该业务 key 的双 buffer
+     * @return 新装载的号段
+     */
+    public Segment updateSegmentFromDb(String key, SegmentBuffer buffer) {
+        StopWatch sw = new Slf4JStopWatch();
+        long start = System.nanoTime();
+        int customStep = prepareAlloc(key, buffer);
+        LeafAlloc leafAlloc = allocFromDb(buffer, customStep);
+        Segment segment = completeAlloc(key, buffer, leafAlloc, customStep, System.nanoTime() - start);
+        sw.stop("updateSegmentFromDb", key + " " + segment);
+        return segment;
+    }
+
+    /**
+     * 装载号段的第一步，确定本次分配使用的步长
+     *
+     * @param key 业务 key
+     * @param buffer 该业务 key 的 buffer
+     * @return 自定义步长，前两次装载返回 0，使用数据库中的 step
+     */
+    private int prepareAlloc(String key, SegmentBuffer buffer) {
+        // 采样上次装载以来发出的 ID 数，更新平滑后的发号速率
+        buffer.updateRate(System.currentTimeMillis());
+        // buffer 未初始化，或更新时间戳为 0 即第二次装载时，使用数据库中已配置好的 step
+        if (!buffer.isInitOk() || buffer.getUpdateTimestamp() == 0) {
+            return 0;
+        }
+        // 第三次及之后装载，由步长策略动态调整步长 step，即增加或减少发号 ID 数，
+        // 目的是降低数据库的访问频率，因为取号是从数据库取的
+        return nextStep(key, buffer);
+    }
+
+    /**
+     * 装载号段的第二步，根据数据库的分配结果更新 buffer 的步长和更新时间戳，创建新号段
+     *
+     * @param key 业务 key
+     * @param buffer 该业务 key 的 buffer
+     * @param leafAlloc 数据库的分配结果
+     * @param customStep prepareAlloc 返回的步长
+     * @param latency 本次装载的耗时，单位纳秒
+     * @return 新装载的号段
+     */
+    private Segment completeAlloc(String key, SegmentBuffer buffer, LeafAlloc leafAlloc, int customStep, long latency) {
+        // buffer 为 false，表示还没初始化，进行第一次初始化
+        if (!buffer.isInitOk()) {
+            // 获取数据库中已配置好的 step
+            buffer.setStep(leafAlloc.getStep());
+            // leafAlloc 中的 step 为 DB 中的 step
+            buffer.setMinStep(getMinStep(key, leafAlloc.getStep()));
+        } else if (customStep <= 0) {
+            // 第二次装载，更新 buffer 当前时间
+            buffer.setUpdateTimestamp(System.currentTimeMillis());
+            // leafAlloc 中的 step 为 DB 中的 step
+            buffer.setMinStep(getMinStep(key, leafAlloc.getStep()));
+        } else {
+            buffer.setUpdateTimestamp(System.currentTimeMillis());
+            // 设置动态调整好的步长
+            buffer.setStep(customStep);
+            // 这里只执行一条 UPDATE，leafAlloc 的 step 为传入的 customStep，不更新 minStep
+        }
+        // 记录装载耗时，用于计算预装载阈值
+        buffer.updateLoadLatency(latency);
+        Segment segment = newSegment(buffer, leafAlloc.getMaxId());
+        if (buffer.getSubRows() > 1 && TimeUnit.NANOSECONDS.toMillis(latency) > subRowSlowMillis) {
+            // 当前子行装载慢，说明其他节点也在竞争该行，下次换到下一个子行
+            buffer.nextSubRow();
+        }
+        return segment;
+    }
+
+    /**
+     * 从数据库分配号段。业务 key 拆分为多个子行时从当前子行分配，失败时依次换到其他子行重试，
+     * 成功时 buffer 的 subRow 即为实际分配的子行
+     *
+     * @param buffer 该业务 key 的 buffer
+     * @param customStep 自定义步长，为 0 时使用数据库中的 step
+     * @return
+     */
+    private LeafAlloc allocFromDb(SegmentBuffer buffer, int customStep) {
+        for (int attempt = 1; ; attempt++) {
+            String dbKey = buffer.getDbKey();
+            try {
+                if (customStep <= 0) {
+                    return dao.updateMaxIdAndGetLeafAlloc(dbKey);
+                }
+                LeafAlloc temp = new LeafAlloc();
+                temp.setKey(dbKey);
+                temp.setStep(customStep);
+                return dao.updateMaxIdByCustomStepAndGetLeafAlloc(temp);
+            } catch (RuntimeException e) {
+                if (attempt >= buffer.getSubRows()) {
+                    throw e;
+                }
+                logger.warn("alloc {} from db failed, try next sub row", dbKey, e);
+                buffer.nextSubRow();
+            }
+        }
+    }
+
+    /**
+     * 一次事务为多个业务 key 各装载一个号段，只用于第三次及之后的装载，即 buffer 的更新时间戳不为 0
+     *
+     * @param buffers 需要装载号段的 buffer
+     * @return 与 buffers 一一对应的新号段
+     */
+    public List<Segment> updateSegmentsFromDb(List<SegmentBuffer> buffers) {
+        StopWatch sw = new Slf4JStopWatch();
+        long now = System.currentTimeMillis();
+        List<LeafAlloc> temps = new ArrayList<LeafAlloc>(buffers.size());
+        int[] nextSteps = new int[buffers.size()];
+        for (int i = 0; i < buffers.size(); i++) {
+            SegmentBuffer buffer = buffers.get(i);
+            buffer.updateRate(now);
+            nextSteps[i] = nextStep(buffer.getKey(), buffer);
+            LeafAlloc temp = new LeafAlloc();
+            temp.setKey(buffer.getDbKey());
+            temp.setStep(nextSteps[i]);
+            temps.add(temp);
+        }
+        long start = System.nanoTime();
+        List<LeafAlloc> leafAllocs = dao.updateMaxIdByCustomStepAndGetLeafAllocs(temps);
+        long latency = System.nanoTime() - start;
+        Map<String, LeafAlloc> allocMap = new HashMap<String, LeafAlloc>();
+        for (LeafAlloc leafAlloc : leafAllocs) {
+            allocMap.put(leafAlloc.getKey(), leafAlloc);
+        }
+        List<Segment> segments = new ArrayList<Segment>(buffers.size());
+        for (int i = 0; i < buffers.size(); i++) {
+            SegmentBuffer buffer = buffers.get(i);
+            LeafAlloc leafAlloc = allocMap.get(buffer.getDbKey());
+            if (leafAlloc == null) {
+                throw new IllegalStateException("biz_tag " + buffer.getDbKey() + " missing from batch refill result");
+            }
+            buffer.setUpdateTimestamp(System.currentTimeMillis());
+            buffer.setStep(nextSteps[i]);
+            buffer.updateLoadLatency(latency);
+            segments.add(newSegment(buffer, leafAlloc.getMaxId()));
+        }
+        sw.stop("updateSegmentsFromDb", buffers.size() + " tags");
+        return segments;
+    }
+
+    /**
+     * 由步长策略计算下一个号段的步长
+     *
+     * @param key 业务 key
+     * @param buffer 该业务 key 的 buffer
+     * @return
+     */
+    private int nextStep(String key, SegmentBuffer buffer) {
+        int nextStep = stepPolicy.nextStep(buffer);
+        long duration = System.currentTimeMillis() - buffer.getUpdateTimestamp();
+        logger.info("leafKey[{}], step[{}], duration[{}mins], rate[{}/s], nextStep[{}]", key, buffer.getStep(), String.format("%.2f",((double)duration / (1000 * 60))), String.format("%.2f", buffer.getRate()), nextStep);
+        return nextStep;
+    }
+
+    /**
+     * 创建新号段，包括 ID 值、最大 ID、步长、预装载阈值等，发布后不再修改
+     *
+     * @param buffer 该业务 key 的 buffer，step 已更新为新号段的步长
+     * @param maxId 数据库更新后的 max_id
+     * @return
+     */
+    private Segment newSegment(SegmentBuffer buffer, long maxId) {
+        long value = maxId - buffer.getStep();
+        long prefetchIdle = prefetchPolicy.prefetchIdle(buffer, buffer.getStep());
+        return new Segment(buffer, value, maxId, buffer.getStep(), prefetchIdle, buffer.getSubRows(), buffer.getSubRow());
+    }
+
+    /**
+     * 发号和准备另一个 buffer，当前 buffer 发号完了，就切换到另一个 buffer 进行发号。
+     * 发号只读取 volatile 的当前号段并对 value 做 getAndIncrement，不加锁
+     *
+     * @param buffer
+     * @return
+     */
+    public Result getIdFromSegmentBuffer(final SegmentBuffer buffer) {
+        // 开启租用的 key，先从当前线程租用的 ID 段发号
+        if (buffer.getLeaseSize() > 0) {
+            return getIdFromLease(buffer);
+        }
+        // 使用自旋，当前 buffer 号发完就会切换到另一个 buffer，然后在判断一次，获取 ID 值
+        while (true) {
+            // 获取当前 Segment，判断另外一个 buffer 是否准备好
+            final Segment segment = buffer.getCurrent();
+            // 号段环没装满且当前号段剩余 ID 数低于预装载阈值，则异步装载号段
+            loadNextSegmentIfNeeded(buffer, segment);
+            // 发号
+            long value = segment.getValue().getAndIncrement();
+            // 如果当前 ID 值小于最大 ID 值，表示号没发完
+            if (value < segment.getMax()) {
+                return new Result(segment.toId(value), Status.SUCCESS);
+            }
+            // 如果当前 ID 值大于最大 ID 值，表示发号完了，先判断 buffer 的另外一个线程是否已配置好另一个 buffer
+            if (!switchSegment(buffer, segment)) {
+                // 另外一个 buffer 没准备好，则报异常，包括等待异步装载超时
+                logger.error("Both two segments in {} are not ready!", buffer);
+                return new Result(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
+            }
+        }
+    }
+
+    /**
+     * 从当前线程租用的 ID 段发号，租用的 ID 发完后，再从当前号段用一次 getAndAdd
+     * 租用 leaseSize 个 ID，多个线程不再竞争同一个 value，但发出的 ID 不再严格递增。
+     * 每次租用不超过号段 step 的 1/LEASES_PER_SEGMENT
+     *
+     * @param buffer
+     * @return
+     */
+    private Result getIdFromLease(final SegmentBuffer buffer) {
+        SegmentLease lease = buffer.getLease();
+        if (lease.hasRemaining()) {
+            return new Result(lease.next(), Status.SUCCESS);
+        }
+        while (true) {
+            final Segment segment = buffer.getCurrent();
+            loadNextSegmentIfNeeded(buffer, segment);
+            int leaseSize = Math.max(1, Math.min(buffer.getLeaseSize(), segment.getStep() / LEASES_PER_SEGMENT));
+            long value = segment.getValue().getAndAdd(leaseSize);
+            if (value < segment.getMax()) {
+                // 第一个 ID 直接发出，剩余的留给当前线程后续发号
+                lease.reset(value + 1, Math.min(segment.getMax(), value + leaseSize), segment.getStride(), segment.getOffset());
+                return new Result(segment.toId(value), Status.SUCCESS);
+            }
+            if (!switchSegment(buffer, segment)) {
+                logger.error("Both two segments in {} are not ready!", buffer);
+                return new Result(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
+            }
+        }
+    }
+
+    /**
+     * 当前号段已发完，挂起等待另一个 buffer 装载完成后，使用 CAS 将当前号段切换为它的 next。
+     * 多线程下可能已被其他线程切换，此时当前号段已不是 segment，直接返回 true 重试发号。
+     * 发号线程触发装载失败（已有装载在运行）后，该装载可能在本线程等待之前结束且没有为 segment 装载下一个号段，
+     * 例如装载的是上一个号段的 next，此时没有线程在装载，重新触发一次装载并再等待一次；装载仍在运行则是等待超时
+     *
+     * @param buffer 当前业务 key 的双 buffer
+     * @param segment 已发完的号段
+     * @return false 表示另一个 buffer 没准备好
+     */
+    private boolean switchSegment(SegmentBuffer buffer, Segment segment) {
+        // 有线程正在装载号段，则挂起等待装载完成，最多等待 waitTimeoutMillis
+        buffer.awaitNext(segment, waitTimeoutMillis);
+        if (buffer.switchToNext(segment) || buffer.getCurrent() != segment) {
+            return true;
+        }
+        if (buffer.getThreadRunning().get()) {
+            // 装载仍在运行，等待超时
+            return false;
+        }
+        loadNextSegmentIfNeeded(buffer, segment);
+        buffer.awaitNext(segment, waitTimeoutMillis);
+        return buffer.switchToNext(segment) || buffer.getCurrent() != segment;
+    }
+
+    /**
+     * 号段环没装满，且当前号段剩余的 ID 数小于预装载阈值，则提交任务到线程池异步装载号段，直到号段环装满
+     *
+     * @param buffer 当前业务 key 的号段环
+     * @param segment 当前号段
+     */
+    private void loadNextSegmentIfNeeded(final SegmentBuffer buffer, Segment segment) {
+        // 如果下面条件满足，则提交装载任务到调度器，装载下一个号段的当前 ID 值、最大 ID 值和步长
+        // 当前 buffer 号段剩余的 ID 数小于预装载阈值，阈值在装载号段时由 prefetchPolicy 计算；
+        // 当前号段之后已装载好的号段数小于 depth - 1，即号段环没装满；
+        // 使用 CAS，判断 buffer 是否已经启动另一个线程，false 表示没启动
+        if (segment.getIdle() < segment.getPrefetchIdle() && buffer.getReadyCount(segment) < buffer.getDepth() - 1
+                && buffer.getThreadRunning().compareAndSet(false, true)) {
+            // 开启合并装载且不是前两次装载时，加入待合并队列，与其他 key 一起装载
+            if (refillBatchSize > 1 && buffer.getUpdateTimestamp() != 0) {
+                offerPendingRefill(buffer);
+                scheduleBatchRefill(buffer.getTimeToExhaustionMillis(segment));
+                return;
+            }
+            // 配置了异步 DAO 时，调度器的工作线程只发起异步分配，由回调链接号段并继续补满号段环
+            Runnable task = asyncDao != null ? new Runnable() {
+                @Override
+                public void run() {
+                    refillAsync(buffer);
+                }
+            } : new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // 突发流量下号段消耗得比装载快，一次补满号段环，
+                        // 平时每发完一个号段，只需补装一个
+                        do {
+                            // 从数据库装载新号段，包括当前 ID 值、最大 ID 值，以及动态调整步长
+                            Segment next = updateSegmentFromDb(buffer.getKey(), buffer);
+                            // 链接到最后一个号段之后，一次 volatile 写即对发号线程可见，相当于 nextReady 为 true
+                            buffer.appendSegment(next);
+                            // 唤醒等待该号段的发号线程
+                            buffer.signalWaiters();
+                            logger.info("update segment {} from db {}", buffer.getKey(), next);
+                        } while (buffer.getReadyCount(buffer.getCurrent()) < buffer.getDepth() - 1);
+                    } catch (Exception e) {
+                        logger.warn(buffer.getKey() + " updateSegmentFromDb exception", e);
+                    } finally {
+                        // 线程是否在运行中，false，装载失败时也唤醒等待的线程，不用等到超时
+                        buffer.getThreadRunning().set(false);
+                        buffer.signalWaiters();
+                    }
+                }
+            };
+            if (!refillScheduler.submit(buffer.getTimeToExhaustionMillis(segment), task)) {
+                // 调度队列已满，复位标记，下一次发号时再尝试装载
+                buffer.getThreadRunning().set(false);
+                buffer.signalWaiters();
+                logger.debug("refill of {} rejected, {}", buffer.getKey(), refillScheduler);
+            }
+        }
+    }
+
+    /**
+     * 异步装载一个号段：发起分配后立即返回，分配完成时在回调中创建号段、链接到号段环并唤醒等待的发号线程，
+     * 号段环仍没装满时发起下一次分配，装满或失败时复位 threadRunning。调用方需已将 threadRunning 置为 true
+     *
+     * @param buffer 需要装载的 buffer
+     */
+    private void refillAsync(SegmentBuffer buffer) {
+        long start = System.nanoTime();
+        int customStep;
+        try {
+            customStep = prepareAlloc(buffer.getKey(), buffer);
+        } catch (Exception e) {
+            logger.warn(buffer.getKey() + " prepare async refill exception", e);
+            finishRefill(buffer);
+            return;
+        }
+        allocAsync(buffer, customStep, start, 1);
+    }
+
+    /**
+     * 从当前子行异步分配号段，拆分为子行的 key 分配失败时换到其他子行重试，与 allocFromDb 一致
+     *
+     * @param buffer 需要装载的 buffer
+     * @param customStep prepareAlloc 返回的步长
+     * @param start 本次装载的开始时间，用于统计装载耗时
+     * @param attempt 第几次尝试
+     */
+    private void allocAsync(final SegmentBuffer buffer, final int customStep, final long start, final int attempt) {
+        final String key = buffer.getKey();
+        final String dbKey = buffer.getDbKey();
+        AsyncIDAllocDao.AllocCallback callback = new AsyncIDAllocDao.AllocCallback() {
+            @Override
+            public void onSuccess(LeafAlloc leafAlloc) {
+                try {
+                    Segment next = completeAlloc(key, buffer, leafAlloc, customStep, System.nanoTime() - start);
+                    // 链接到最后一个号段之后，一次 volatile 写即对发号线程可见
+                    buffer.appendSegment(next);
+                    buffer.signalWaiters();
+                    logger.info("update segment {} from db {}", key, next);
+                } catch (Exception e) {
+                    logger.warn(key + " complete async refill exception", e);
+                    finishRefill(buffer);
+                    return;
+                }
+                // 突发流量下一次补满号段环，平时每发完一个号段，只需补装一个
+                if (buffer.getReadyCount(buffer.getCurrent()) < buffer.getDepth() - 1) {
+                    refillAsync(buffer);
+                } else {
+                    finishRefill(buffer);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                if (attempt < buffer.getSubRows()) {
+                    logger.warn("alloc {} from db failed, try next sub row", dbKey, cause);
+                    buffer.nextSubRow();
+                    allocAsync(buffer, customStep, start, attempt + 1);
+                    return;
+                }
+                logger.warn(key + " async updateSegmentFromDb exception", cause);
+                finishRefill(buffer);
+            }
+        };
+        try {
+            if (customStep <= 0) {
+                asyncDao.updateMaxIdAndGetLeafAlloc(dbKey, callback);
+            } else {
+                LeafAlloc temp = new LeafAlloc();
+                temp.setKey(dbKey);
+                temp.setStep(customStep);
+                asyncDao.updateMaxIdByCustomStepAndGetLeafAlloc(temp, callback);
+            }
+        } catch (RuntimeException e) {
+            // 发起分配失败，不会再有回调
+            logger.warn(key + " start async refill exception", e);
+            finishRefill(buffer);
+        }
+    }
+
+    private void offerPendingRefill(SegmentBuffer buffer) {
+        pendingRefills.offer(buffer);
+        pendingRefillCount.incrementAndGet();
+    }
+
+    private SegmentBuffer pollPendingRefill() {
+        SegmentBuffer buffer = pendingRefills.poll();
+        if (buffer != null) {
+            pendingRefillCount.decrementAndGet();
+        }
+        return buffer;
+    }
+
+    /**
+     * 待合并的 buffer 超过还没取 buffer 的合并装载任务能装载的数量时，再提交一个合并装载任务。
+     * 任务先等待 refillBatchWindowMillis 让同一时间触发装载的 key 聚集，再提交到调度器，
+     * 同时最多有调度器工作线程数个合并装载任务，多个工作线程可以同时装载
+     *
+     * @param timeToExhaustionMillis 触发装载的号段预计多久后发完
+     */
+    private void scheduleBatchRefill(final long timeToExhaustionMillis) {
+        while (true) {
+            int running = batchRefills.get();
+            if (running >= refillScheduler.getWorkers()
+                    || (long) waitingBatchRefills.get() * refillBatchSize >= pendingRefillCount.get()) {
+                return;
+            }
+            if (batchRefills.compareAndSet(running, running + 1)) {
+                break;
+            }
+        }
+        waitingBatchRefills.incrementAndGet();
+        Runnable submit = new Runnable() {
+            @Override
+            public void run() {
+                boolean submitted = refillScheduler.submit(timeToExhaustionMillis, new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            batchRefill();
+                        } finally {
+                            batchRefills.decrementAndGet();
+                            // 执行期间新加入或放回队列的 buffer 由下一个合并装载任务处理
+                            scheduleBatchRefill(0);
+                        }
+                    }
+                });
+                if (!submitted) {
+                    // 调度队列已满，复位所有待合并的 buffer，下一次发号时再尝试装载
+                    waitingBatchRefills.decrementAndGet();
+                    batchRefills.decrementAndGet();
+                    SegmentBuffer buffer;
+                    while ((buffer = pollPendingRefill()) != null) {
+                        finishRefill(buffer);
+                    }
+                }
+            }
+        };
+        if (refillBatchWindowMillis > 0) {
+            try {
+                batchWindowTimer.schedule(submit, refillBatchWindowMillis, TimeUnit.MILLISECONDS);
+                return;
+            } catch (RejectedExecutionException e) {
+                logger.warn("batch window timer rejected, submit directly", e);
+            }
+        }
+        submit.run();
+    }
+
+    /**
+     * 取出最多 refillBatchSize 个 key 一次事务装载。号段环仍没装满的 key 重新放回队列，由下一个合并装载任务继续装载
+     */
+    private void batchRefill() {
+        // 先减少等待中的任务数再取 buffer，取之后才加入的 buffer 会触发新的任务，不会滞留在队列中
+        waitingBatchRefills.decrementAndGet();
+        List<SegmentBuffer> buffers = new ArrayList<SegmentBuffer>();
+        SegmentBuffer polled;
+        while (buffers.size() < refillBatchSize && (polled = pollPendingRefill()) != null) {
+            buffers.add(polled);
+        }
+        if (buffers.isEmpty()) {
+            return;
+        }
+        try {
+            List<Segment> segments = updateSegmentsFromDb(buffers);
+            for (int i = 0; i < buffers.size(); i++) {
+                SegmentBuffer buffer = buffers.get(i);
+                buffer.appendSegment(segments.get(i));
+                buffer.signalWaiters();
+                logger.info("update segment {} from db {}", buffer.getKey(), segments.get(i));
+                if (buffer.getReadyCount(buffer.getCurrent()) < buffer.getDepth() - 1) {
+                    offerPendingRefill(buffer);
+                } else {
+                    finishRefill(buffer);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("batch updateSegmentsFromDb exception, " + buffers.size() + " tags", e);
+            for (SegmentBuffer buffer : buffers) {
+                finishRefill(buffer);
+            }
+        }
+    }
+
+    /**
+     * 装载结束，复位 threadRunning，并唤醒等待的发号线程
+     *
+     * @param buffer
+     */
+    private void finishRefill(SegmentBuffer buffer) {
+        buffer.getThreadRunning().set(false);
+        buffer.signalWaiters();
+    }
+
+    /**
+     * 批量发号，从当前号段用 getAndAdd 一次预留剩余需要的 ID 数，超出 max 的部分不发，
+     * 切换到另一个 buffer 后继续预留，直到凑够 n 个 ID
+     *
+     * @param buffer
+     * @param n 需要的 ID 个数
+     * @return
+     */
+    public BatchResult getIdsFromSegmentBuffer(final SegmentBuffer buffer, int n) {
+        List<IDRange> ranges = new ArrayList<IDRange>(2);
+        int remaining = n;
+        while (true) {
+            final Segment segment = buffer.getCurrent();
+            loadNextSegmentIfNeeded(buffer, segment);
+            remaining -= reserveRange(segment, remaining, ranges);
+            if (remaining == 0) {
+                return new BatchResult(ranges);
+            }
+            // 当前号段已发完，切换到另一个 buffer 继续预留
+            if (!switchSegment(buffer, segment)) {
+                // 已预留的 ID 不再发出，号段模式允许 ID 不连续
+                logger.error("Both two segments in {} are not ready!", buffer);
+                return new BatchResult(EXCEPTION_ID_TWO_SEGMENTS_ARE_NULL, Status.EXCEPTION);
+            }
+        }
+    }
+
+    /**
+     * 从号段中用一次 getAndAdd 预留至多 n 个 ID，超过 max 的部分丢弃
+     *
+     * @param segment 号段
+     * @param n 需要的 ID 个数
+     * @param ranges 预留成功的号段加入该列表
+     * @return 实际预留的 ID 个数
+     */
+    private int reserveRange(Segment segment, int n, List<IDRange> ranges) {
+        long start = segment.getValue().getAndAdd(n);
+        long max = segment.getMax();
+        if (start >= max) {
+            return 0;
+        }
+        int count = (int) (Math.min(max, start + n) - start);
+        ranges.add(new IDRange(segment.toId(start), count, segment.getStride()));
+        return count;
+    }
+
+    public List<LeafAlloc> getAllLeafAllocs() {
+        return dao.getAllLeafAllocs();
+    }
+
+    public long getMissingTagTtlMillis() {
+        return missingTagTtlMillis;
+    }
+
+    public void setMissingTagTtlMillis(long missingTagTtlMillis) {
+        this.missingTagTtlMillis = missingTagTtlMillis;
+    }
+
+    public int getMaxMissingTags() {
+        return maxMissingTags;
+    }
+
+    public void setMaxMissingTags(int maxMissingTags) {
+        this.maxMissingTags = maxMissingTags;
+    }
+
+    public long getFullSyncIntervalMillis() {
+        return fullSyncIntervalMillis;
+    }
+
+    public void setFullSyncIntervalMillis(long fullSyncIntervalMillis) {
+        this.fullSyncIntervalMillis = fullSyncIntervalMillis;
+    }
+
+    public long getSyncOverlapMillis() {
+        return syncOverlapMillis;
+    }
+
+    public void setSyncOverlapMillis(long syncOverlapMillis) {
+        this.syncOverlapMillis = syncOverlapMillis;
+    }
+
+    public RefillScheduler getRefillScheduler() {
+        return refillScheduler;
+    }
+
+    /**
+     * 替换号段装载调度器，需要在 init 之前调用，原调度器会被关闭
+     *
+     * @param refillScheduler
+     */
+    public void setRefillScheduler(RefillScheduler refillScheduler) {
+        RefillScheduler old = this.refillScheduler;
+        this.refillScheduler = refillScheduler;
+        if (old != null && old != refillScheduler) {
+            old.shutdown();
+        }
+    }
+
+    public int getRefillBatchSize() {
+        return refillBatchSize;
+    }
+
+    public void setRefillBatchSize(int refillBatchSize) {
+        if (refillBatchSize < 1) {
+            throw new IllegalArgumentException("refillBatchSize must be positive, got " + refillBatchSize);
+        }
+        this.refillBatchSize = refillBatchSize;
+    }
+
+    public long getRefillBatchWindowMillis() {
+        return refillBatchWindowMillis;
+    }
+
+    public void setRefillBatchWindowMillis(long refillBatchWindowMillis) {
+        this.refillBatchWindowMillis = refillBatchWindowMillis;
+    }
+
+    public Map<String, SegmentBuffer> getCache() {
+        return cache;
+    }
+
+    public IDAllocDao getDao() {
         return dao;
     }
 
     public void setDao(IDAllocDao dao) {
         this.dao = dao;
     }
+
+    public long getWaitTimeoutMillis() {
+        return waitTimeoutMillis;
+    }
+
+    public void setWaitTimeoutMillis(long waitTimeoutMillis) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+    }
+
+    /**
+     * 获取该业务 key 的最小步长，未单独配置时为数据库中的 step
+     *
+     * @param tag
+     * @param dbStep 数据库中的 step
+     * @return
+     */
+    private int getMinStep(String tag, int dbStep) {
+        Integer step = tagMinSteps.get(tag);
+        return step != null ? step : dbStep;
+    }
+
+    /**
+     * 获取该业务 key 的最大步长
+     * @param tag
+     * @return
+     */
+    private int getMaxStep(String tag) {
+        Integer step = tagMaxSteps.get(tag);
+        return step != null ? step : maxStep;
+    }
+
+    public StepPolicy getStepPolicy() {
+        return stepPolicy;
+    }
+
+    public void setStepPolicy(StepPolicy stepPolicy) {
+        this.stepPolicy = stepPolicy;
+    }
+
+    public PrefetchPolicy getPrefetchPolicy() {
+        return prefetchPolicy;
+    }
+
+    public void setPrefetchPolicy(PrefetchPolicy prefetchPolicy) {
+        this.prefetchPolicy = prefetchPolicy;
+    }
+
+    public int getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(int maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    public Map<String, Integer> getTagMinSteps() {
+        return tagMinSteps;
+    }
+
+    public void setTagMinSteps(Map<String, Integer> tagMinSteps) {
+        this.tagMinSteps = tagMinSteps;
+    }
+
+    public Map<String, Integer> getTagMaxSteps() {
+        return tagMaxSteps;
+    }
+
+    public void setTagMaxSteps(Map<String, Integer> tagMaxSteps) {
+        this.tagMaxSteps = tagMaxSteps;
+    }
+
+    /**
+     * 获取该业务 key 的号段环深度
+     * @param tag
+     * @return
+     */
+    private int getBufferDepth(String tag) {
+        Integer depth = tagBufferDepths.get(tag);
+        return depth != null ? depth : bufferDepth;
+    }
+
+    public int getBufferDepth() {
+        return bufferDepth;
+    }
+
+    public void setBufferDepth(int bufferDepth) {
+        if (bufferDepth < 2) {
+            throw new IllegalArgumentException("bufferDepth must gte 2");
+        }
+        this.bufferDepth = bufferDepth;
+    }
+
+    public Map<String, Integer> getTagBufferDepths() {
+        return tagBufferDepths;
+    }
+
+    public void setTagBufferDepths(Map<String, Integer> tagBufferDepths) {
+        for (Map.Entry<String, Integer> entry : tagBufferDepths.entrySet()) {
+            if (entry.getValue() < 2) {
+                throw new IllegalArgumentException("bufferDepth of " + entry.getKey() + " must gte 2");
+            }
+        }
+        this.tagBufferDepths = tagBufferDepths;
+    }
+
+    /**
+     * 获取该业务 key 的子行数，即 leaf.segment.subrows.{biz_tag}，未配置时为 1，表示不拆分子行
+     * @param tag
+     * @return
+     */
+    private int getSubRows(String tag) {
+        Integer subRows = tagSubRows.get(tag);
+        return subRows != null ? subRows : 1;
+    }
+
+    public Map<String, Integer> getTagSubRows() {
+        return tagSubRows;
+    }
+
+    public void setTagSubRows(Map<String, Integer> tagSubRows) {
+        for (Map.Entry<String, Integer> entry : tagSubRows.entrySet()) {
+            if (entry.getValue() < 1) {
+                throw new IllegalArgumentException("sub rows of " + entry.getKey() + " must be positive, got " + entry.getValue());
+            }
+        }
+        this.tagSubRows = tagSubRows;
+    }
+
+    public long getSubRowSlowMillis() {
+        return subRowSlowMillis;
+    }
+
+    public void setSubRowSlowMillis(long subRowSlowMillis) {
+        this.subRowSlowMillis = subRowSlowMillis;
+    }
+
+    /**
+     * 获取该业务 key 每个线程一次从号段租用的 ID 数，未单独配置时使用 leaseSize。
+     * 大于 0 时该 key 在本机发出的 ID 不再递增，线程已租用未发出的 ID 可能丢失，见 leaseSize
+     * @param tag
+     * @return
+     */
+    private int getLeaseSize(String tag) {
+        Integer size = tagLeaseSizes.get(tag);
+        return size != null ? size : leaseSize;
+    }
+
+    public int getLeaseSize() {
+        return leaseSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive, got " + maxBatchSize);
+        }
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    public void setLeaseSize(int leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+    public Map<String, Integer> getTagLeaseSizes() {
+        return tagLeaseSizes;
+    }
+
+    public void setTagLeaseSizes(Map<String, Integer> tagLeaseSizes) {
+        this.tagLeaseSizes = tagLeaseSizes;
+    }
+
+    public boolean isWarmUpEnabled() {
+        return warmUpEnabled;
+    }
+
+    public void setWarmUpEnabled(boolean warmUpEnabled) {
+        this.warmUpEnabled = warmUpEnabled;
+    }
+
+    public Set<String> getWarmUpTags() {
+        return warmUpTags;
+    }
+
+    public void setWarmUpTags(Set<String> warmUpTags) {
+        this.warmUpTags = warmUpTags;
+    }
+
+    public int getWarmUpConcurrency() {
+        return warmUpConcurrency;
+    }
+
+    public void setWarmUpConcurrency(int warmUpConcurrency) {
+        if (warmUpConcurrency < 1) {
+            throw new IllegalArgumentException("warmUpConcurrency must be positive, got " + warmUpConcurrency);
+        }
+        this.warmUpConcurrency = warmUpConcurrency;
+    }
+
+    public boolean isWarmUpNextSegment() {
+        return warmUpNextSegment;
+    }
+
+    public void setWarmUpNextSegment(boolean warmUpNextSegment) {
+        this.warmUpNextSegment = warmUpNextSegment;
+    }
+
+    public long getWarmUpTimeoutMillis() {
+        return warmUpTimeoutMillis;
+    }
+
+    public void setWarmUpTimeoutMillis(long warmUpTimeoutMillis) {
+        this.warmUpTimeoutMillis = warmUpTimeoutMillis;
+    }
+
+    public AsyncIDAllocDao getAsyncDao() {
+        return asyncDao;
+    }
+
+    public void setAsyncDao(AsyncIDAllocDao asyncDao) {
+        this.asyncDao = asyncDao;
+    }
 }
@@ -0,0 +1,20 @@
+package com.sankuai.inf.leaf.segment.dao;
+
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+/**
+ * 号段分配的异步接口，调用立即返回，结果通过 AllocCallback 回调，
+ * 装载中的号段不占用发号服务的线程。回调可能在 DAO 内部的线程中执行，不能阻塞
+ */
+public interface AsyncIDAllocDao {
+     void updateMaxIdAndGetLeafAlloc(String tag, AllocCallback callback);
+     void updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc, AllocCallback callback);
+
+     /**
+      * 分配结果回调，每次调用 onSuccess 和 onFailure 只会回调其中一个，且只回调一次
+      */
+     interface AllocCallback {
+          void onSuccess(LeafAlloc leafAlloc);
+          void onFailure(Throwable cause);
+     }
+}
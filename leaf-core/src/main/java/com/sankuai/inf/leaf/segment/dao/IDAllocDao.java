@@ -2,11 +2,15 @@ package com.sankuai.inf.leaf.segment.dao;
 
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IDAllocDao {
      List<LeafAlloc> getAllLeafAllocs();
      LeafAlloc updateMaxIdAndGetLeafAlloc(String tag);
      LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc);
+     List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs);
      List<String> getAllTags();
+     LeafAlloc getLeafAlloc(String tag);
+     List<String> getTagsCreatedSince(Date since);
 }
@@ -3,6 +3,7 @@ package com.sankuai.inf.leaf.segment.dao;
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
 import org.apache.ibatis.annotations.*;
 
+import java.util.Date;
 import java.util.List;
 
 public interface IDAllocMapper {
@@ -30,6 +31,28 @@ public interface IDAllocMapper {
     @Update("UPDATE leaf_alloc SET max_id = max_id + #{step} WHERE biz_tag = #{key}")
     void updateMaxIdByCustomStep(@Param("leafAlloc") LeafAlloc leafAlloc);
 
+    @Update("UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + step) WHERE biz_tag = #{key}")
+    @Options(useGeneratedKeys = true, keyProperty = "maxId")
+    int allocMaxId(LeafAlloc leafAlloc);
+
+    @Update("UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + #{step}) WHERE biz_tag = #{key}")
+    @Options(useGeneratedKeys = true, keyProperty = "maxId")
+    int allocMaxIdByCustomStep(LeafAlloc leafAlloc);
+
+    @Select({"<script>",
+            "SELECT biz_tag, max_id, step FROM leaf_alloc WHERE biz_tag IN",
+            "<foreach collection='list' item='tag' open='(' separator=',' close=')'>#{tag}</foreach>",
+            "</script>"})
+    @Results(value = {
+            @Result(column = "biz_tag", property = "key"),
+            @Result(column = "max_id", property = "maxId"),
+            @Result(column = "step", property = "step")
+    })
+    List<LeafAlloc> getLeafAllocs(List<String> tags);
+
     @Select("SELECT biz_tag FROM leaf_alloc")
     List<String> getAllTags();
+
+    @Select("SELECT biz_tag FROM leaf_alloc WHERE create_time >= #{since}")
+    List<String> getTagsCreatedSince(@Param("since") Date since);
 }
@@ -0,0 +1,79 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 将同步的 IDAllocDao 适配为 AsyncIDAllocDao：在 executor 中调用同步方法，完成后回调。
+ * 数据库往返期间仍占用 executor 的一个线程，同时进行的装载数不超过 executor 的线程数
+ */
+public class BlockingAsyncIDAllocDao implements AsyncIDAllocDao {
+
+    private final IDAllocDao dao;
+
+    private final Executor executor;
+
+    public BlockingAsyncIDAllocDao(IDAllocDao dao, Executor executor) {
+        this.dao = dao;
+        this.executor = executor;
+    }
+
+    @Override
+    public void updateMaxIdAndGetLeafAlloc(final String tag, AllocCallback callback) {
+        execute(callback, new DaoCall() {
+            @Override
+            public LeafAlloc call() {
+                return dao.updateMaxIdAndGetLeafAlloc(tag);
+            }
+        });
+    }
+
+    @Override
+    public void updateMaxIdByCustomStepAndGetLeafAlloc(final LeafAlloc leafAlloc, AllocCallback callback) {
+        execute(callback, new DaoCall() {
+            @Override
+            public LeafAlloc call() {
+                return dao.updateMaxIdByCustomStepAndGetLeafAlloc(leafAlloc);
+            }
+        });
+    }
+
+    public IDAllocDao getDao() {
+        return dao;
+    }
+
+    /**
+     * 提交到 executor 执行，提交失败或调用异常时回调 onFailure。
+     * onSuccess 在 try 之外回调，回调本身抛出的异常不会再回调 onFailure
+     */
+    private void execute(final AllocCallback callback, final DaoCall call) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    LeafAlloc leafAlloc;
+                    try {
+                        leafAlloc = call.call();
+                    } catch (Throwable t) {
+                        callback.onFailure(t);
+                        return;
+                    }
+                    callback.onSuccess(leafAlloc);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e);
+        }
+    }
+
+    /**
+     * 在 executor 中执行的同步调用
+     */
+    private interface DaoCall {
+        LeafAlloc call();
+    }
+}
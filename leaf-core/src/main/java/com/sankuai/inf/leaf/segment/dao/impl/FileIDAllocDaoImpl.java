@@ -0,0 +1,518 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 基于本地文件的 IDAllocDao，不依赖 MySQL，用于边缘节点和集成测试：
+ * 1. 每个 tag 的 max_id、step 保存在内存中，持久化到内存映射的追加写日志，启动时重放日志恢复；
+ * 2. 日志中记录的是每个 tag 已预留的 max_id 上限，比分配出去的 max_id 多预留 reserveSteps 个 step，
+ *    上限以内的分配只修改内存，不写文件；超过上限时才追加一条记录并刷盘；
+ * 3. 多个线程同时等待刷盘时合并为一次 force，即 group commit；
+ * 4. 分配只在对应的记录刷盘后才返回，宕机重启后从预留上限继续分配，发出的号段不会重复，只会跳过未发完的部分；
+ * 5. 日志写满时将每个 tag 的最新记录写入新文件并原子替换旧文件，即压缩。
+ *
+ * 日志记录格式：payload 长度(int) | payload 的 CRC32(int) | max_id(long) | step(int) | update_time(long) | tag 长度(short) | tag(UTF-8)
+ */
+public class FileIDAllocDaoImpl implements IDAllocDao, Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(FileIDAllocDaoImpl.class);
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 记录头，包括 payload 长度和 CRC32
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * payload 中 tag 之前的固定部分
+     */
+    private static final int FIXED_PAYLOAD_SIZE = 8 + 4 + 8 + 2;
+
+    /**
+     * 默认日志文件大小，16MB
+     */
+    public static final int DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * 默认预留的 step 数
+     */
+    public static final int DEFAULT_RESERVE_STEPS = 10;
+
+    private final Path path;
+
+    private final int reserveSteps;
+
+    private int capacity;
+
+    private MappedByteBuffer mapped;
+
+    /**
+     * 下一条记录在文件中的写入位置
+     */
+    private int writeOffset;
+
+    /**
+     * 累计写入的字节数，压缩后不归零，用于判断记录是否已刷盘
+     */
+    private long writtenSeq;
+
+    /**
+     * 已刷盘的 writtenSeq
+     */
+    private final AtomicLong flushedSeq = new AtomicLong();
+
+    /**
+     * 刷盘锁，同一时刻只有一个线程执行 force，其余线程等待后检查自己的记录是否已被刷盘
+     */
+    private final Object flushLock = new Object();
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    public FileIDAllocDaoImpl(String path) throws IOException {
+        this(path, DEFAULT_CAPACITY, DEFAULT_RESERVE_STEPS);
+    }
+
+    /**
+     * 打开日志文件并重放，文件不存在时创建
+     *
+     * @param path 日志文件路径
+     * @param capacity 日志文件大小，写满时压缩
+     * @param reserveSteps 每次刷盘预留的 step 数，为 0 表示每次分配都刷盘
+     * @throws IOException
+     */
+    public FileIDAllocDaoImpl(String path, int capacity, int reserveSteps) throws IOException {
+        if (capacity < 1024) {
+            throw new IllegalArgumentException("capacity must be at least 1024, got " + capacity);
+        }
+        if (reserveSteps < 0) {
+            throw new IllegalArgumentException("reserveSteps must not be negative, got " + reserveSteps);
+        }
+        this.path = Paths.get(path);
+        this.reserveSteps = reserveSteps;
+        FileChannel channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.capacity = (int) Math.max(capacity, channel.size());
+            this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+        } finally {
+            // 关闭 channel 不影响已建立的映射
+            channel.close();
+        }
+        replay();
+    }
+
+    /**
+     * 从头重放日志，遇到长度为 0、越界或 CRC 不一致的记录即停止，之后的内容是宕机时未写完的记录，
+     * 这些记录没有刷盘成功，对应的分配也没有返回，丢弃是安全的
+     */
+    private void replay() {
+        int offset = 0;
+        int records = 0;
+        while (offset + HEADER_SIZE <= capacity) {
+            int length = mapped.getInt(offset);
+            if (length < FIXED_PAYLOAD_SIZE || offset + HEADER_SIZE + length > capacity) {
+                break;
+            }
+            int crc = mapped.getInt(offset + 4);
+            byte[] payload = new byte[length];
+            mapped.position(offset + HEADER_SIZE);
+            mapped.get(payload);
+            if (crc(payload) != crc) {
+                logger.warn("Journal {} has a torn record at offset {}, truncated", path, offset);
+                break;
+            }
+            applyRecord(payload);
+            offset += HEADER_SIZE + length;
+            records++;
+        }
+        // 停在未写完的记录上时清空之后的内容，避免之后追加的短记录后面残留旧数据
+        if (offset + 4 <= capacity && mapped.getInt(offset) != 0) {
+            for (int i = offset; i < capacity; i++) {
+                mapped.put(i, (byte) 0);
+            }
+            mapped.force();
+        }
+        writeOffset = offset;
+        logger.info("Replay journal {}, {} records, {} tags", path, records, entries.size());
+    }
+
+    private void applyRecord(byte[] payload) {
+        ByteBuffer buf = ByteBuffer.wrap(payload);
+        long maxId = buf.getLong();
+        int step = buf.getInt();
+        long updateTime = buf.getLong();
+        byte[] tagBytes = new byte[buf.getShort()];
+        buf.get(tagBytes);
+        String tag = new String(tagBytes, UTF_8);
+        Entry entry = entries.get(tag);
+        if (entry == null) {
+            // tag 的第一条记录为创建记录
+            entry = new Entry();
+            entry.createTime = updateTime;
+            entries.put(tag, entry);
+        }
+        // 重启后从预留上限继续分配
+        entry.maxId = maxId;
+        entry.reservedMaxId = maxId;
+        entry.step = step;
+        entry.updateTime = updateTime;
+    }
+
+    /**
+     * 创建 tag，已存在时不做修改
+     *
+     * @param tag 业务 key
+     * @param maxId 初始 max_id
+     * @param step 步长
+     * @return 是否新建
+     */
+    public boolean createTagIfAbsent(String tag, long maxId, int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step must be positive, got " + step);
+        }
+        long seq;
+        synchronized (this) {
+            if (entries.containsKey(tag)) {
+                return false;
+            }
+            Entry entry = new Entry();
+            entry.maxId = maxId;
+            entry.reservedMaxId = maxId;
+            entry.step = step;
+            entry.updateTime = System.currentTimeMillis();
+            entry.createTime = entry.updateTime;
+            entry.reservedSeq = append(tag, entry);
+            entries.put(tag, entry);
+            seq = entry.reservedSeq;
+        }
+        sync(seq);
+        return true;
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        List<LeafAlloc> result = new ArrayList<LeafAlloc>();
+        synchronized (this) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                result.add(toLeafAlloc(entry.getKey(), entry.getValue(), entry.getValue().step));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        return allocate(tag, 0);
+    }
+
+    /**
+     * 返回对象中的 step 为传入的 step，与 IDAllocDaoImpl 一致
+     */
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        return allocate(leafAlloc.getKey(), leafAlloc.getStep());
+    }
+
+    @Override
+    public List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        List<LeafAlloc> result = new ArrayList<LeafAlloc>(leafAllocs.size());
+        long seq = 0;
+        synchronized (this) {
+            // 先检查所有 tag 都存在，保证要么全部分配要么全部不分配
+            for (LeafAlloc leafAlloc : leafAllocs) {
+                getEntry(leafAlloc.getKey());
+            }
+            for (LeafAlloc leafAlloc : leafAllocs) {
+                Entry entry = getEntry(leafAlloc.getKey());
+                seq = Math.max(seq, advance(leafAlloc.getKey(), entry, leafAlloc.getStep()));
+                result.add(toLeafAlloc(leafAlloc.getKey(), entry, leafAlloc.getStep()));
+            }
+        }
+        sync(seq);
+        return result;
+    }
+
+    @Override
+    public synchronized List<String> getAllTags() {
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    @Override
+    public synchronized LeafAlloc getLeafAlloc(String tag) {
+        Entry entry = entries.get(tag);
+        return entry == null ? null : toLeafAlloc(tag, entry, entry.step);
+    }
+
+    @Override
+    public synchronized List<String> getTagsCreatedSince(Date since) {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().createTime >= since.getTime()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 将所有已追加的记录刷盘，映射由 GC 回收
+     */
+    @Override
+    public void close() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                mapped.force();
+                advanceFlushed(writtenSeq);
+            }
+        }
+    }
+
+    /**
+     * 分配一个号段，等待预留上限的记录刷盘后返回
+     *
+     * @param tag 业务 key
+     * @param customStep 自定义步长，为 0 时使用 tag 的 step
+     * @return
+     */
+    private LeafAlloc allocate(String tag, int customStep) {
+        LeafAlloc result;
+        long seq;
+        synchronized (this) {
+            Entry entry = getEntry(tag);
+            int step = customStep > 0 ? customStep : entry.step;
+            seq = advance(tag, entry, step);
+            result = toLeafAlloc(tag, entry, step);
+        }
+        sync(seq);
+        return result;
+    }
+
+    private Entry getEntry(String tag) {
+        Entry entry = entries.get(tag);
+        if (entry == null) {
+            throw new IllegalStateException("biz_tag " + tag + " not found in " + path);
+        }
+        return entry;
+    }
+
+    /**
+     * 在内存中分配号段，超过预留上限时追加一条新的上限记录
+     *
+     * @return 需要等待刷盘的 writtenSeq
+     */
+    private long advance(String tag, Entry entry, int step) {
+        entry.maxId += step;
+        entry.updateTime = System.currentTimeMillis();
+        if (entry.maxId > entry.reservedMaxId) {
+            entry.reservedMaxId = entry.maxId + (long) reserveSteps * step;
+            entry.reservedSeq = append(tag, entry);
+        }
+        return entry.reservedSeq;
+    }
+
+    /**
+     * 追加一条记录，只写入映射内存，不刷盘。空间不足时先压缩
+     *
+     * @return 写入该记录后的 writtenSeq
+     */
+    private long append(String tag, Entry entry) {
+        byte[] record = encode(tag, entry);
+        if (writeOffset + record.length > capacity) {
+            compact(record.length);
+        }
+        mapped.position(writeOffset);
+        mapped.put(record);
+        writeOffset += record.length;
+        writtenSeq += record.length;
+        return writtenSeq;
+    }
+
+    /**
+     * 将所有 tag 的最新记录写入临时文件，刷盘后原子替换日志文件。替换后所有已预留的上限都已持久化
+     *
+     * @param extra 压缩后还需要写入的字节数
+     */
+    private void compact(int extra) {
+        Path tmp = Paths.get(path.toString() + ".tmp");
+        try {
+            List<byte[]> records = new ArrayList<byte[]>(entries.size());
+            int size = 0;
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                byte[] record = encode(entry.getKey(), entry.getValue());
+                records.add(record);
+                size += record.length;
+            }
+            // 压缩后至少保留一半空间给之后的追加
+            int newCapacity = (int) Math.min(Integer.MAX_VALUE, Math.max((long) capacity, 2L * (size + extra)));
+            FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            } finally {
+                channel.close();
+            }
+            int offset = 0;
+            for (byte[] record : records) {
+                buffer.position(offset);
+                buffer.put(record);
+                offset += record.length;
+            }
+            buffer.force();
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory();
+            mapped = buffer;
+            capacity = newCapacity;
+            writeOffset = offset;
+            advanceFlushed(writtenSeq);
+            logger.info("Compact journal {}, {} tags, {} bytes", path, records.size(), offset);
+        } catch (IOException e) {
+            throw new IllegalStateException("compact journal " + path + " failed", e);
+        }
+    }
+
+    /**
+     * 刷盘父目录，保证重命名持久化，部分平台不支持时忽略
+     */
+    private void syncDirectory() {
+        Path dir = path.toAbsolutePath().getParent();
+        if (dir == null) {
+            return;
+        }
+        try {
+            FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            logger.debug("sync directory {} failed", dir, e);
+        }
+    }
+
+    /**
+     * 等待 writtenSeq 不小于 seq 的内容刷盘。持有 flushLock 的线程一次 force 会把其他线程追加的记录一起刷盘，
+     * 等待中的线程拿到锁后发现已刷盘即直接返回
+     *
+     * @param seq
+     */
+    private void sync(long seq) {
+        if (flushedSeq.get() >= seq) {
+            return;
+        }
+        synchronized (flushLock) {
+            if (flushedSeq.get() >= seq) {
+                return;
+            }
+            long target;
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                target = writtenSeq;
+                buffer = mapped;
+            }
+            buffer.force();
+            advanceFlushed(target);
+        }
+    }
+
+    private void advanceFlushed(long seq) {
+        while (true) {
+            long current = flushedSeq.get();
+            if (current >= seq || flushedSeq.compareAndSet(current, seq)) {
+                return;
+            }
+        }
+    }
+
+    private byte[] encode(String tag, Entry entry) {
+        byte[] tagBytes = tag.getBytes(UTF_8);
+        if (tagBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("biz_tag too long: " + tag);
+        }
+        int length = FIXED_PAYLOAD_SIZE + tagBytes.length;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + length);
+        buf.putInt(length);
+        buf.putInt(0);
+        buf.putLong(entry.reservedMaxId);
+        buf.putInt(entry.step);
+        buf.putLong(entry.updateTime);
+        buf.putShort((short) tagBytes.length);
+        buf.put(tagBytes);
+        byte[] record = buf.array();
+        CRC32 crc32 = new CRC32();
+        crc32.update(record, HEADER_SIZE, length);
+        buf.putInt(4, (int) crc32.getValue());
+        return record;
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    private static LeafAlloc toLeafAlloc(String tag, Entry entry, int step) {
+        LeafAlloc leafAlloc = new LeafAlloc();
+        leafAlloc.setKey(tag);
+        leafAlloc.setMaxId(entry.maxId);
+        leafAlloc.setStep(step);
+        leafAlloc.setUpdateTime(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(entry.updateTime)));
+        return leafAlloc;
+    }
+
+    /**
+     * 一个 tag 在内存中的状态
+     */
+    private static class Entry {
+        /**
+         * 已分配出去的 max_id
+         */
+        long maxId;
+
+        /**
+         * 日志中记录的预留上限，不小于 maxId
+         */
+        long reservedMaxId;
+
+        /**
+         * 数据库中的 step，即 tag 的默认步长
+         */
+        int step;
+
+        long updateTime;
+
+        /**
+         * 创建时间，不写入日志，重放时取 tag 第一条记录的 update_time。日志压缩后会晚于实际创建时间，
+         * 只会让增量同步多返回已缓存的 key
+         */
+        long createTime;
+
+        /**
+         * 写入预留上限记录后的 writtenSeq，刷盘到这里后上限才持久化
+         */
+        long reservedSeq;
+    }
+}
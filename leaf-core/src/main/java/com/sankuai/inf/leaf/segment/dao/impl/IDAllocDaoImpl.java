@@ -5,6 +5,7 @@ import com.sankuai.inf.leaf.segment.dao.IDAllocMapper;
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
 import org.apache.ibatis.mapping.Environment;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
 import org.apache.ibatis.session.SqlSession;
 import org.apache.ibatis.session.SqlSessionFactory;
 import org.apache.ibatis.session.SqlSessionFactoryBuilder;
@@ -12,7 +13,13 @@ import org.apache.ibatis.transaction.TransactionFactory;
 import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
 
 import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 调用数据库，用于查询 key、和更新 key 的发号配置
@@ -49,23 +56,25 @@ public class IDAllocDaoImpl implements IDAllocDao {
     }
 
     /**
-     * 1. 从数据库更新该业务 tag 的 maxId，即 maxId + step；
-     * 2. 再从数据库查询该 tag 的结果，将查询结果封装成对象 LeafAlloc，为数据库表的实体类；
-     * 3. 封装成功，提交事务，返回封装对象。
+     * 1. 从数据库更新该业务 tag 的 maxId，即 maxId + step，更新后的 max_id 通过 LAST_INSERT_ID(expr)
+     *    随 UPDATE 的响应一起返回，不需要再 SELECT；
+     * 2. session 为自动提交，行锁只在这一条 UPDATE 执行期间持有；
+     * 3. 行锁释放后再查询该 tag 的 step，step 只在初始化号段时需要。
      *
      * @param tag
      * @return
      */
     @Override
     public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
-        SqlSession sqlSession = sqlSessionFactory.openSession();
+        SqlSession sqlSession = sqlSessionFactory.openSession(true);
         try {
+            LeafAlloc temp = new LeafAlloc();
+            temp.setKey(tag);
             // tag 为数据库的 biz_tag，更新该 tag 的 maxId，从 sql 语句可看出 maxId = max_id + step
-            sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxId", tag);
-            // 更新完后，从数据库获取该 tag 的查询结果，封装成 LeafAlloc 对象
+            checkUpdated(tag, sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.allocMaxId", temp));
+            // 更新完后，从数据库获取该 tag 的查询结果，封装成 LeafAlloc 对象，max_id 以 UPDATE 返回的为准
             LeafAlloc result = sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAlloc", tag);
-            // 封装成功，提交事务
-            sqlSession.commit();
+            result.setMaxId(temp.getMaxId());
             return result;
         } finally {
             sqlSession.close();
@@ -73,17 +82,68 @@ public class IDAllocDaoImpl implements IDAllocDao {
     }
 
     /**
-     * 传入 LeafAlloc 对象，可自定义 step，根据业务需要可设置更大的 step，maxId = max_id + step
+     * 传入 LeafAlloc 对象，可自定义 step，根据业务需要可设置更大的 step，maxId = max_id + step。
+     * 只执行一条自动提交的 UPDATE，一次网络往返，返回对象中的 step 为传入的 step，不是数据库中的 step
      *
      * @param leafAlloc
      * @return
      */
     @Override
     public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
-        SqlSession sqlSession = sqlSessionFactory.openSession();
+        SqlSession sqlSession = sqlSessionFactory.openSession(true);
         try {
-            sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdByCustomStep", leafAlloc);
-            LeafAlloc result = sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAlloc", leafAlloc.getKey());
+            LeafAlloc result = new LeafAlloc();
+            result.setKey(leafAlloc.getKey());
+            result.setStep(leafAlloc.getStep());
+            checkUpdated(leafAlloc.getKey(), sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.allocMaxIdByCustomStep", result));
+            return result;
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    /**
+     * 一次事务为多个 tag 各按自定义的 step 更新 maxId：
+     * 1. 按 tag 排序后以 JDBC batch 发送所有 UPDATE，多个实例同时合并装载时加锁顺序一致，避免死锁；
+     * 2. 在同一个事务中用一条 SELECT ... IN 查询更新后的 max_id；
+     * 3. 所有 tag 都更新成功才提交，否则回滚。
+     * 返回对象中的 step 为传入的 step
+     *
+     * @param leafAllocs
+     * @return
+     */
+    @Override
+    public List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        List<LeafAlloc> sorted = new ArrayList<LeafAlloc>(leafAllocs);
+        Collections.sort(sorted, new Comparator<LeafAlloc>() {
+            @Override
+            public int compare(LeafAlloc o1, LeafAlloc o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        List<String> tags = new ArrayList<String>(sorted.size());
+        SqlSession sqlSession = sqlSessionFactory.openSession(ExecutorType.BATCH, false);
+        try {
+            for (LeafAlloc leafAlloc : sorted) {
+                sqlSession.update("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.updateMaxIdByCustomStep", leafAlloc);
+                tags.add(leafAlloc.getKey());
+            }
+            sqlSession.flushStatements();
+            List<LeafAlloc> dbAllocs = sqlSession.selectList("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAllocs", tags);
+            Map<String, LeafAlloc> dbAllocMap = new HashMap<String, LeafAlloc>();
+            for (LeafAlloc dbAlloc : dbAllocs) {
+                dbAllocMap.put(dbAlloc.getKey(), dbAlloc);
+            }
+            List<LeafAlloc> result = new ArrayList<LeafAlloc>(sorted.size());
+            for (LeafAlloc leafAlloc : sorted) {
+                LeafAlloc dbAlloc = dbAllocMap.get(leafAlloc.getKey());
+                if (dbAlloc == null) {
+                    // 未提交，关闭 session 时回滚
+                    throw new IllegalStateException("biz_tag " + leafAlloc.getKey() + " not found in leaf_alloc");
+                }
+                dbAlloc.setStep(leafAlloc.getStep());
+                result.add(dbAlloc);
+            }
             sqlSession.commit();
             return result;
         } finally {
@@ -91,6 +151,18 @@ public class IDAllocDaoImpl implements IDAllocDao {
         }
     }
 
+    /**
+     * UPDATE 没有命中行时 LAST_INSERT_ID 不会被设置，不能使用返回的 maxId
+     *
+     * @param tag
+     * @param updated 更新的行数
+     */
+    private void checkUpdated(String tag, int updated) {
+        if (updated != 1) {
+            throw new IllegalStateException("biz_tag " + tag + " not found in leaf_alloc, updated " + updated);
+        }
+    }
+
     /**
      * 获取数据库中所有的业务 key，即 biz_tag
      *
@@ -105,4 +177,37 @@ public class IDAllocDaoImpl implements IDAllocDao {
             sqlSession.close();
         }
     }
+
+    /**
+     * 获取 create_time 不早于 since 的业务 key，用于增量同步，create_time 上需要有索引。
+     * 不使用 update_time，因为每次装载号段都会修改 update_time，它上面的索引会增加装载的写入开销
+     *
+     * @param since
+     * @return
+     */
+    @Override
+    public List<String> getTagsCreatedSince(Date since) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(false);
+        try {
+            return sqlSession.selectList("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getTagsCreatedSince", since);
+        } finally {
+            sqlSession.close();
+        }
+    }
+
+    /**
+     * 查询单个业务 key 的发号配置，不存在时返回 null
+     *
+     * @param tag
+     * @return
+     */
+    @Override
+    public LeafAlloc getLeafAlloc(String tag) {
+        SqlSession sqlSession = sqlSessionFactory.openSession(false);
+        try {
+            return sqlSession.selectOne("com.sankuai.inf.leaf.segment.dao.IDAllocMapper.getLeafAlloc", tag);
+        } finally {
+            sqlSession.close();
+        }
+    }
 }
@@ -0,0 +1,338 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 直接使用 JDBC 访问 leaf_alloc 的 IDAllocDao，与 IDAllocDaoImpl 的 SQL 和语义一致：
+ * 1. 不经过 MyBatis 的 statement 查找、参数和结果的反射映射，结果按列下标手工映射为 LeafAlloc；
+ * 2. SQL 为常量，连接池开启 PreparedStatement 缓存后（如 Druid 的 poolPreparedStatements），
+ *    同一个连接上的 prepareStatement 直接复用已预编译的语句；
+ * 3. SQLException 包装为 IllegalStateException 抛出，与 MyBatis 的运行时异常一致。
+ */
+public class JdbcIDAllocDaoImpl implements IDAllocDao {
+
+    private static final String GET_ALL_LEAF_ALLOCS = "SELECT biz_tag, max_id, step, update_time FROM leaf_alloc";
+
+    private static final String GET_LEAF_ALLOC = "SELECT biz_tag, max_id, step FROM leaf_alloc WHERE biz_tag = ?";
+
+    private static final String GET_STEP = "SELECT step FROM leaf_alloc WHERE biz_tag = ?";
+
+    private static final String ALLOC_MAX_ID = "UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + step) WHERE biz_tag = ?";
+
+    private static final String ALLOC_MAX_ID_BY_CUSTOM_STEP = "UPDATE leaf_alloc SET max_id = LAST_INSERT_ID(max_id + ?) WHERE biz_tag = ?";
+
+    private static final String UPDATE_MAX_ID_BY_CUSTOM_STEP = "UPDATE leaf_alloc SET max_id = max_id + ? WHERE biz_tag = ?";
+
+    private static final String GET_LEAF_ALLOCS_PREFIX = "SELECT biz_tag, max_id, step FROM leaf_alloc WHERE biz_tag IN (";
+
+    private static final String GET_ALL_TAGS = "SELECT biz_tag FROM leaf_alloc";
+
+    private static final String GET_TAGS_CREATED_SINCE = "SELECT biz_tag FROM leaf_alloc WHERE create_time >= ?";
+
+    private final DataSource dataSource;
+
+    public JdbcIDAllocDaoImpl(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            ps = conn.prepareStatement(GET_ALL_LEAF_ALLOCS);
+            rs = ps.executeQuery();
+            List<LeafAlloc> result = new ArrayList<LeafAlloc>();
+            while (rs.next()) {
+                LeafAlloc leafAlloc = mapLeafAlloc(rs);
+                leafAlloc.setUpdateTime(rs.getString(4));
+                result.add(leafAlloc);
+            }
+            return result;
+        } catch (SQLException e) {
+            throw new IllegalStateException("get all leaf_alloc failed", e);
+        } finally {
+            close(rs, ps, conn);
+        }
+    }
+
+    /**
+     * 与 IDAllocDaoImpl 相同，自动提交的 UPDATE 通过 LAST_INSERT_ID(expr) 返回更新后的 max_id，
+     * 行锁释放后再查询 step
+     *
+     * @param tag
+     * @return
+     */
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            ps = conn.prepareStatement(ALLOC_MAX_ID, Statement.RETURN_GENERATED_KEYS);
+            ps.setString(1, tag);
+            long maxId = executeAlloc(tag, ps);
+            ps.close();
+            ps = conn.prepareStatement(GET_STEP);
+            ps.setString(1, tag);
+            rs = ps.executeQuery();
+            if (!rs.next()) {
+                throw new IllegalStateException("biz_tag " + tag + " not found in leaf_alloc");
+            }
+            LeafAlloc result = new LeafAlloc();
+            result.setKey(tag);
+            result.setMaxId(maxId);
+            result.setStep(rs.getInt(1));
+            return result;
+        } catch (SQLException e) {
+            throw new IllegalStateException("update max_id of " + tag + " failed", e);
+        } finally {
+            close(rs, ps, conn);
+        }
+    }
+
+    /**
+     * 只执行一条自动提交的 UPDATE，返回对象中的 step 为传入的 step
+     *
+     * @param leafAlloc
+     * @return
+     */
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        String tag = leafAlloc.getKey();
+        Connection conn = null;
+        PreparedStatement ps = null;
+        try {
+            conn = dataSource.getConnection();
+            ps = conn.prepareStatement(ALLOC_MAX_ID_BY_CUSTOM_STEP, Statement.RETURN_GENERATED_KEYS);
+            ps.setInt(1, leafAlloc.getStep());
+            ps.setString(2, tag);
+            LeafAlloc result = new LeafAlloc();
+            result.setKey(tag);
+            result.setStep(leafAlloc.getStep());
+            result.setMaxId(executeAlloc(tag, ps));
+            return result;
+        } catch (SQLException e) {
+            throw new IllegalStateException("update max_id of " + tag + " failed", e);
+        } finally {
+            close(null, ps, conn);
+        }
+    }
+
+    /**
+     * 与 IDAllocDaoImpl 相同，按 tag 排序后以 JDBC batch 发送所有 UPDATE，
+     * 在同一个事务中用 SELECT ... IN 查询更新后的 max_id，所有 tag 都存在才提交
+     *
+     * @param leafAllocs
+     * @return
+     */
+    @Override
+    public List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        if (leafAllocs.isEmpty()) {
+            return new ArrayList<LeafAlloc>();
+        }
+        List<LeafAlloc> sorted = new ArrayList<LeafAlloc>(leafAllocs);
+        Collections.sort(sorted, new Comparator<LeafAlloc>() {
+            @Override
+            public int compare(LeafAlloc o1, LeafAlloc o2) {
+                return o1.getKey().compareTo(o2.getKey());
+            }
+        });
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        boolean committed = false;
+        try {
+            conn = dataSource.getConnection();
+            conn.setAutoCommit(false);
+            ps = conn.prepareStatement(UPDATE_MAX_ID_BY_CUSTOM_STEP);
+            for (LeafAlloc leafAlloc : sorted) {
+                ps.setInt(1, leafAlloc.getStep());
+                ps.setString(2, leafAlloc.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            ps.close();
+            StringBuilder sql = new StringBuilder(GET_LEAF_ALLOCS_PREFIX);
+            for (int i = 0; i < sorted.size(); i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(')');
+            ps = conn.prepareStatement(sql.toString());
+            for (int i = 0; i < sorted.size(); i++) {
+                ps.setString(i + 1, sorted.get(i).getKey());
+            }
+            rs = ps.executeQuery();
+            Map<String, LeafAlloc> dbAllocMap = new HashMap<String, LeafAlloc>();
+            while (rs.next()) {
+                LeafAlloc dbAlloc = mapLeafAlloc(rs);
+                dbAllocMap.put(dbAlloc.getKey(), dbAlloc);
+            }
+            List<LeafAlloc> result = new ArrayList<LeafAlloc>(sorted.size());
+            for (LeafAlloc leafAlloc : sorted) {
+                LeafAlloc dbAlloc = dbAllocMap.get(leafAlloc.getKey());
+                if (dbAlloc == null) {
+                    throw new IllegalStateException("biz_tag " + leafAlloc.getKey() + " not found in leaf_alloc");
+                }
+                dbAlloc.setStep(leafAlloc.getStep());
+                result.add(dbAlloc);
+            }
+            conn.commit();
+            committed = true;
+            return result;
+        } catch (SQLException e) {
+            throw new IllegalStateException("batch update max_id of " + sorted.size() + " tags failed", e);
+        } finally {
+            close(rs, ps, null);
+            if (conn != null) {
+                try {
+                    if (!committed) {
+                        conn.rollback();
+                    }
+                    conn.setAutoCommit(true);
+                } catch (SQLException ignored) {
+                    // 连接已不可用，由连接池丢弃
+                }
+                close(null, null, conn);
+            }
+        }
+    }
+
+    @Override
+    public List<String> getAllTags() {
+        return queryTags(GET_ALL_TAGS, null);
+    }
+
+    @Override
+    public List<String> getTagsCreatedSince(Date since) {
+        return queryTags(GET_TAGS_CREATED_SINCE, since);
+    }
+
+    @Override
+    public LeafAlloc getLeafAlloc(String tag) {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            ps = conn.prepareStatement(GET_LEAF_ALLOC);
+            ps.setString(1, tag);
+            rs = ps.executeQuery();
+            return rs.next() ? mapLeafAlloc(rs) : null;
+        } catch (SQLException e) {
+            throw new IllegalStateException("get leaf_alloc of " + tag + " failed", e);
+        } finally {
+            close(rs, ps, conn);
+        }
+    }
+
+    /**
+     * 执行带 LAST_INSERT_ID(expr) 的 UPDATE，从生成的主键中取出更新后的 max_id。
+     * UPDATE 没有命中行时 LAST_INSERT_ID 不会被设置，不能使用返回值
+     *
+     * @param tag
+     * @param ps
+     * @return 更新后的 max_id
+     * @throws SQLException
+     */
+    private long executeAlloc(String tag, PreparedStatement ps) throws SQLException {
+        int updated = ps.executeUpdate();
+        if (updated != 1) {
+            throw new IllegalStateException("biz_tag " + tag + " not found in leaf_alloc, updated " + updated);
+        }
+        ResultSet keys = ps.getGeneratedKeys();
+        try {
+            if (!keys.next()) {
+                throw new IllegalStateException("no LAST_INSERT_ID returned for biz_tag " + tag);
+            }
+            return keys.getLong(1);
+        } finally {
+            keys.close();
+        }
+    }
+
+    /**
+     * 查询业务 key 列表
+     *
+     * @param sql
+     * @param since 不为 null 时作为 create_time 的下限
+     * @return
+     */
+    private List<String> queryTags(String sql, Date since) {
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            conn = dataSource.getConnection();
+            ps = conn.prepareStatement(sql);
+            if (since != null) {
+                ps.setTimestamp(1, new Timestamp(since.getTime()));
+            }
+            rs = ps.executeQuery();
+            List<String> tags = new ArrayList<String>();
+            while (rs.next()) {
+                tags.add(rs.getString(1));
+            }
+            return tags;
+        } catch (SQLException e) {
+            throw new IllegalStateException("query biz_tag failed", e);
+        } finally {
+            close(rs, ps, conn);
+        }
+    }
+
+    /**
+     * 按列下标映射 biz_tag, max_id, step
+     */
+    private static LeafAlloc mapLeafAlloc(ResultSet rs) throws SQLException {
+        LeafAlloc leafAlloc = new LeafAlloc();
+        leafAlloc.setKey(rs.getString(1));
+        leafAlloc.setMaxId(rs.getLong(2));
+        leafAlloc.setStep(rs.getInt(3));
+        return leafAlloc;
+    }
+
+    /**
+     * 依次关闭结果集、语句和连接，关闭时的异常不影响业务结果。
+     * 连接池缓存 PreparedStatement 时，关闭语句只是归还到该连接的缓存中
+     */
+    private static void close(ResultSet rs, Statement ps, Connection conn) {
+        try {
+            if (rs != null) {
+                rs.close();
+            }
+        } catch (SQLException ignored) {
+        }
+        try {
+            if (ps != null) {
+                ps.close();
+            }
+        } catch (SQLException ignored) {
+        }
+        try {
+            if (conn != null) {
+                conn.close();
+            }
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 将 leaf_alloc 分片到多个数据库的 IDAllocDao：
+ * 1. 每个 biz_tag 按一致性哈希路由到一个分片，tag 的行需要插入到 getShardIndex 返回的分片中；
+ * 2. 每个分片在哈希环上有 virtualNodes 个虚拟节点，使 tag 在分片间均匀分布，增加分片时只有少量 tag 需要迁移；
+ * 3. getAllTags、getAllLeafAllocs 等查询所有 tag 的方法并行查询所有分片后合并；
+ * 4. 批量装载按分片拆分后并行执行，每个分片一个事务，分片之间不保证原子性。
+ */
+public class ShardingIDAllocDaoImpl implements IDAllocDao {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * 默认每个分片的虚拟节点数
+     */
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final List<IDAllocDao> shards;
+
+    /**
+     * 哈希环，key 为虚拟节点的哈希值，value 为分片下标
+     */
+    private final TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+
+    /**
+     * 并行查询各分片的线程池
+     */
+    private final ExecutorService executor;
+
+    public ShardingIDAllocDaoImpl(List<IDAllocDao> shards) {
+        this(shards, DEFAULT_VIRTUAL_NODES);
+    }
+
+    public ShardingIDAllocDaoImpl(List<IDAllocDao> shards, int virtualNodes) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("shards must not be empty");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive, got " + virtualNodes);
+        }
+        this.shards = new ArrayList<IDAllocDao>(shards);
+        for (int i = 0; i < shards.size(); i++) {
+            for (int j = 0; j < virtualNodes; j++) {
+                ring.put(hash("shard-" + i + "-vn-" + j), i);
+            }
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Thread-Leaf-Shard-" + threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * 返回 tag 所在的分片下标，即哈希环上顺时针方向第一个虚拟节点所属的分片
+     *
+     * @param tag 业务 key
+     * @return
+     */
+    public int getShardIndex(String tag) {
+        SortedMap<Long, Integer> tail = ring.tailMap(hash(tag));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    private IDAllocDao shardOf(String tag) {
+        return shards.get(getShardIndex(tag));
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        return fanOut(new ShardCall<LeafAlloc>() {
+            @Override
+            public List<LeafAlloc> call(IDAllocDao shard) {
+                return shard.getAllLeafAllocs();
+            }
+        });
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        return shardOf(tag).updateMaxIdAndGetLeafAlloc(tag);
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        return shardOf(leafAlloc.getKey()).updateMaxIdByCustomStepAndGetLeafAlloc(leafAlloc);
+    }
+
+    @Override
+    public List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        final List<List<LeafAlloc>> groups = new ArrayList<List<LeafAlloc>>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            groups.add(new ArrayList<LeafAlloc>());
+        }
+        for (LeafAlloc leafAlloc : leafAllocs) {
+            groups.get(getShardIndex(leafAlloc.getKey())).add(leafAlloc);
+        }
+        List<Future<List<LeafAlloc>>> futures = new ArrayList<Future<List<LeafAlloc>>>();
+        for (int i = 0; i < shards.size(); i++) {
+            final IDAllocDao shard = shards.get(i);
+            final List<LeafAlloc> group = groups.get(i);
+            if (group.isEmpty()) {
+                continue;
+            }
+            futures.add(executor.submit(new Callable<List<LeafAlloc>>() {
+                @Override
+                public List<LeafAlloc> call() {
+                    return shard.updateMaxIdByCustomStepAndGetLeafAllocs(group);
+                }
+            }));
+        }
+        return collect(futures);
+    }
+
+    @Override
+    public List<String> getAllTags() {
+        return fanOut(new ShardCall<String>() {
+            @Override
+            public List<String> call(IDAllocDao shard) {
+                return shard.getAllTags();
+            }
+        });
+    }
+
+    @Override
+    public LeafAlloc getLeafAlloc(String tag) {
+        return shardOf(tag).getLeafAlloc(tag);
+    }
+
+    @Override
+    public List<String> getTagsCreatedSince(final Date since) {
+        return fanOut(new ShardCall<String>() {
+            @Override
+            public List<String> call(IDAllocDao shard) {
+                return shard.getTagsCreatedSince(since);
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 在每个分片上并行执行查询并合并结果，任一分片失败则整体失败，
+     * 避免全量同步时把失败分片上的 tag 当作已删除
+     */
+    private <T> List<T> fanOut(final ShardCall<T> call) {
+        List<Future<List<T>>> futures = new ArrayList<Future<List<T>>>(shards.size());
+        for (final IDAllocDao shard : shards) {
+            futures.add(executor.submit(new Callable<List<T>>() {
+                @Override
+                public List<T> call() {
+                    return call.call(shard);
+                }
+            }));
+        }
+        return collect(futures);
+    }
+
+    private <T> List<T> collect(List<Future<List<T>>> futures) {
+        List<T> result = new ArrayList<T>();
+        try {
+            for (Future<List<T>> future : futures) {
+                List<T> part = future.get();
+                if (part != null) {
+                    result.addAll(part);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while querying shards", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("query shard failed", cause);
+        }
+        return result;
+    }
+
+    /**
+     * 取 MD5 的前 8 个字节作为哈希值
+     */
+    private static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not supported", e);
+        }
+        byte[] digest = md5.digest(key.getBytes(UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (digest[i] & 0xFF);
+        }
+        return h;
+    }
+
+    /**
+     * 对单个分片执行的查询
+     */
+    private interface ShardCall<T> {
+        List<T> call(IDAllocDao shard);
+    }
+}
@@ -2,56 +2,107 @@ package com.sankuai.inf.leaf.segment.model;
 
 import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 号段描述，从数据库装载后 max、step 不再改变，发号只修改原子类 value。
+ * 每次从数据库装载都创建新的 Segment，通过 next 链接到上一个号段之后，
+ * 切换号段时只需一次 CAS 发布新的当前号段，读线程无需加锁
+ */
 public class Segment {
     /**
      * 当前 ID 值，使用原子类，保证多线程下的线程安全
      */
-    private AtomicLong value = new AtomicLong(0);
+    private final AtomicLong value;
 
     /**
      * 最大 ID 值
      */
-    private volatile long max;
+    private final long max;
 
     /**
      * 步长
      */
-    private volatile int step;
+    private final int step;
 
-    private SegmentBuffer buffer;
+    /**
+     * 预装载阈值，剩余的 ID 数小于该值时开始异步装载下一个号段
+     */
+    private final long prefetchIdle;
+
+    /**
+     * 业务 key 拆分为多个子行时，子行中的 value 为局部 ID，发出的 ID 为 value * stride + offset，
+     * stride 为子行数，offset 为子行下标，不同子行的 ID 互不重叠。不拆分时 stride 为 1，offset 为 0
+     */
+    private final int stride;
 
-    public Segment(SegmentBuffer buffer) {
+    private final int offset;
+
+    private final SegmentBuffer buffer;
+
+    /**
+     * 下一个已从数据库装载好的号段，为 null 表示还没准备好
+     */
+    private volatile Segment next;
+
+    public Segment(SegmentBuffer buffer, long value, long max, int step, long prefetchIdle) {
+        this(buffer, value, max, step, prefetchIdle, 1, 0);
+    }
+
+    public Segment(SegmentBuffer buffer, long value, long max, int step, long prefetchIdle, int stride, int offset) {
         this.buffer = buffer;
+        this.value = new AtomicLong(value);
+        this.max = max;
+        this.step = step;
+        this.prefetchIdle = prefetchIdle;
+        this.stride = stride;
+        this.offset = offset;
     }
 
-    public AtomicLong getValue() {
-        return value;
+    /**
+     * 将号段中的局部 ID 转换为发出的 ID
+     *
+     * @param value
+     * @return
+     */
+    public long toId(long value) {
+        return value * stride + offset;
     }
 
-    public void setValue(AtomicLong value) {
-        this.value = value;
+    public int getStride() {
+        return stride;
     }
 
-    public long getMax() {
-        return max;
+    public int getOffset() {
+        return offset;
     }
 
-    public void setMax(long max) {
-        this.max = max;
+    public AtomicLong getValue() {
+        return value;
+    }
+
+    public long getMax() {
+        return max;
     }
 
     public int getStep() {
         return step;
     }
 
-    public void setStep(int step) {
-        this.step = step;
+    public long getPrefetchIdle() {
+        return prefetchIdle;
     }
 
     public SegmentBuffer getBuffer() {
         return buffer;
     }
 
+    public Segment getNext() {
+        return next;
+    }
+
+    public void setNext(Segment next) {
+        this.next = next;
+    }
+
     /**
      * 获取当前 buffer 剩余的 ID 号
      * @return
@@ -69,6 +120,14 @@ public class Segment {
         sb.append(max);
         sb.append(",step:");
         sb.append(step);
+        sb.append(",prefetchIdle:");
+        sb.append(prefetchIdle);
+        if (stride > 1) {
+            sb.append(",stride:");
+            sb.append(stride);
+            sb.append(",offset:");
+            sb.append(offset);
+        }
         sb.append(")");
         return sb.toString();
     }
@@ -1,34 +1,54 @@
 package com.sankuai.inf.leaf.segment.model;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * 双 buffer，保证 DB 出问题，buffer 还可以正常发 ID 号码
+ * 多 buffer，保证 DB 出问题，buffer 还可以正常发 ID 号码。当前号段通过 AtomicReference 发布，
+ * 预先装载好的号段依次链接在当前号段的 next 之后，最多 depth 个号段，默认为 2，即双 buffer。
+ * 发号和切换号段都不加锁
  */
 public class SegmentBuffer {
+    /**
+     * 子行 biz_tag 中 key 与子行下标的分隔符
+     */
+    public static final String SUB_ROW_SEPARATOR = "#";
+
+    /**
+     * 发号速率指数加权移动平均的平滑系数，越大越偏向最近一次的采样
+     */
+    private static final double RATE_ALPHA = 0.3;
+
+    /**
+     * 两次速率采样的最小间隔，号段环一次补装多个号段时，间隔太短的采样不准确，不更新速率
+     */
+    private static final long MIN_RATE_SAMPLE_MILLIS = 1000L;
+
     /**
      * 业务 key
      */
     private String key;
 
     /**
-     * 双 buffer
+     * 当前发号的 segment
      */
-    private Segment[] segments;
+    private final AtomicReference<Segment> current;
 
     /**
-     * 当前的使用的 segment 的 index，即使用哪个 buffer
+     * 最后一个装载好的 segment，异步装载的号段链接到它之后，只有装载线程会修改
      */
-    private volatile int currentPos;
+    private volatile Segment tail;
 
     /**
-     * 下一个 segment 是否处于可切换状态
+     * 号段环的深度，包括当前号段在内最多装载的号段数，至少为 2
      */
-    private volatile boolean nextReady;
+    private volatile int depth = 2;
 
     /**
      * 是否初始化完成
@@ -41,9 +61,44 @@ public class SegmentBuffer {
     private final AtomicBoolean threadRunning;
 
     /**
-     * 读写锁
+     * 当前号段发完、等待异步装载完成的线程，装载完成后由装载线程唤醒
+     */
+    private final ConcurrentLinkedQueue<Thread> waiters = new ConcurrentLinkedQueue<Thread>();
+
+    /**
+     * 等待过异步装载的次数
+     */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /**
+     * 等待异步装载的累计时间，单位纳秒
      */
-    private final ReadWriteLock lock;
+    private final AtomicLong waitTimeNanos = new AtomicLong();
+
+    /**
+     * 每个线程一次从号段租用的 ID 数，为 0 表示不租用，所有线程直接从号段发号
+     */
+    private volatile int leaseSize;
+
+    /**
+     * 业务 key 在数据库中拆分的子行数，子行的 biz_tag 为 key#0 到 key#(subRows-1)，为 1 表示不拆分
+     */
+    private volatile int subRows = 1;
+
+    /**
+     * 当前从哪个子行装载号段，只由装载号段的线程修改
+     */
+    private volatile int subRow;
+
+    /**
+     * 每个线程租用的 ID 段，开启租用后该 key 在本机内不再严格递增
+     */
+    private final ThreadLocal<SegmentLease> leases = new ThreadLocal<SegmentLease>() {
+        @Override
+        protected SegmentLease initialValue() {
+            return new SegmentLease();
+        }
+    };
 
     /**
      * 步长
@@ -55,27 +110,52 @@ public class SegmentBuffer {
      */
     private volatile int minStep;
 
+    /**
+     * 最大步长
+     */
+    private volatile int maxStep;
+
+    /**
+     * 已切换掉的号段的 ID 数之和，加上当前号段已发的 ID 数，即为累计发出的 ID 数
+     */
+    private final AtomicLong retiredCount = new AtomicLong();
+
+    /**
+     * 平滑后的发号速率，每秒发出的 ID 数，只在从数据库装载号段时更新
+     */
+    private volatile double rate;
+
+    /**
+     * 平滑后的从数据库装载号段的耗时，单位毫秒
+     */
+    private volatile double loadLatencyMillis;
+
+    /**
+     * 上一次速率采样的时间
+     */
+    private volatile long rateTimestamp;
+
+    /**
+     * 上一次速率采样时累计发出的 ID 数
+     */
+    private volatile long rateIssuedCount;
+
     /**
      * 更新时间
      */
     private volatile long updateTimestamp;
 
     /**
-     * 构造函数，初始 Segment 数组为 2，即双 buffer
+     * 构造函数，当前号段为零值号段，第一次发号时再从数据库装载
      */
     public SegmentBuffer() {
-        // 创建双 buffer，另一个 buffer 会使用线程池异步调用。当前
-        // buffer 的号码发完，就会调用另外一个 buffer 来发号，保证
-        // 有一个 buffer 准备好发号
-        segments = new Segment[]{new Segment(this), new Segment(this)};
-        // 指向 buffer 的指针，0 或 1，注意切换是 currentPos+1，然后对
-        // 其取余，即 (currentPos + 1) % 2，可见 nextPos() 方法
-        currentPos = 0;
-        // 创建线程，异步调用另一个 buffer，是否已从数据库配置好，可进行发号
-        nextReady = false;
+        // 另一个 buffer 会使用线程池异步装载，装载好后链接到当前号段的 next。
+        // 当前 buffer 的号码发完，就会切换到 next 来发号
+        Segment empty = new Segment(this, 0, 0, 0, 0);
+        current = new AtomicReference<Segment>(empty);
+        tail = empty;
         initOk = false;
         threadRunning = new AtomicBoolean(false);
-        lock = new ReentrantReadWriteLock();
     }
 
     public String getKey() {
@@ -86,24 +166,59 @@ public class SegmentBuffer {
         this.key = key;
     }
 
+    /**
+     * 从当前号段开始，返回所有已装载好的号段
+     * @return
+     */
     public Segment[] getSegments() {
-        return segments;
+        List<Segment> segments = new ArrayList<Segment>(2);
+        for (Segment segment = current.get(); segment != null; segment = segment.getNext()) {
+            segments.add(segment);
+        }
+        return segments.toArray(new Segment[segments.size()]);
     }
 
     public Segment getCurrent() {
-        return segments[currentPos];
+        return current.get();
     }
 
-    public int getCurrentPos() {
-        return currentPos;
+    /**
+     * 初始化时直接设置当前号段
+     * @param segment
+     */
+    public void setCurrent(Segment segment) {
+        current.set(segment);
+        tail = segment;
     }
 
-    public int nextPos() {
-        return (currentPos + 1) % 2;
+    public Segment getTail() {
+        return tail;
     }
 
-    public void switchPos() {
-        currentPos = nextPos();
+    /**
+     * 将异步装载好的号段链接到最后一个号段之后，next 为 volatile，链接后对发号线程可见
+     * @param segment
+     */
+    public void appendSegment(Segment segment) {
+        tail.setNext(segment);
+        tail = segment;
+    }
+
+    /**
+     * 当前号段发完后切换到它的 next，使用 CAS 保证多个线程只有一个切换成功
+     *
+     * @param segment 已发完的号段
+     * @return next 为 null 表示另一个 buffer 还没准备好，返回 false
+     */
+    public boolean switchToNext(Segment segment) {
+        Segment next = segment.getNext();
+        if (next == null) {
+            return false;
+        }
+        if (current.compareAndSet(segment, next)) {
+            retiredCount.addAndGet(segment.getStep());
+        }
+        return true;
     }
 
     public boolean isInitOk() {
@@ -115,23 +230,134 @@ public class SegmentBuffer {
     }
 
     public boolean isNextReady() {
-        return nextReady;
+        return current.get().getNext() != null;
     }
 
-    public void setNextReady(boolean nextReady) {
-        this.nextReady = nextReady;
+    /**
+     * 已装载好、排在 segment 之后等待发号的号段数
+     * @param segment
+     * @return
+     */
+    public int getReadyCount(Segment segment) {
+        int count = 0;
+        for (Segment next = segment.getNext(); next != null; next = next.getNext()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 异步装载线程正在运行且 segment 之后还没有装载好的号段时，挂起当前线程，
+     * 直到装载线程链接了新号段或装载结束后唤醒，或等待超时
+     *
+     * @param segment 已发完的号段
+     * @param timeoutMillis 最长等待时间
+     */
+    public void awaitNext(Segment segment, long timeoutMillis) {
+        if (!threadRunning.get() || segment.getNext() != null) {
+            return;
+        }
+        Thread thread = Thread.currentThread();
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        waiters.add(thread);
+        try {
+            // 先入队再检查条件，装载线程在入队之后唤醒时 park 会立即返回，不会丢失信号
+            while (threadRunning.get() && segment.getNext() == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || thread.isInterrupted()) {
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            waiters.remove(thread);
+            waitCount.incrementAndGet();
+            waitTimeNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 装载线程链接了新号段或装载结束时，唤醒所有等待的线程
+     */
+    public void signalWaiters() {
+        for (Thread waiter : waiters) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * 等待异步装载的累计时间，单位毫秒
+     * @return
+     */
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get());
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
     }
 
     public AtomicBoolean getThreadRunning() {
         return threadRunning;
     }
 
-    public Lock rLock() {
-        return lock.readLock();
+    public int getSubRows() {
+        return subRows;
     }
 
-    public Lock wLock() {
-        return lock.writeLock();
+    public void setSubRows(int subRows) {
+        this.subRows = subRows;
+    }
+
+    public int getSubRow() {
+        return subRow;
+    }
+
+    public void setSubRow(int subRow) {
+        this.subRow = subRow;
+    }
+
+    /**
+     * 换到下一个子行装载号段
+     */
+    public void nextSubRow() {
+        if (subRows > 1) {
+            subRow = (subRow + 1) % subRows;
+        }
+    }
+
+    /**
+     * 当前子行在数据库中的 biz_tag，不拆分时即为 key
+     *
+     * @return
+     */
+    public String getDbKey() {
+        return subRows > 1 ? key + SUB_ROW_SEPARATOR + subRow : key;
+    }
+
+    public int getLeaseSize() {
+        return leaseSize;
+    }
+
+    public void setLeaseSize(int leaseSize) {
+        this.leaseSize = leaseSize;
+    }
+
+    /**
+     * 获取当前线程租用的 ID 段
+     * @return
+     */
+    public SegmentLease getLease() {
+        return leases.get();
     }
 
     public int getStep() {
@@ -150,6 +376,83 @@ public class SegmentBuffer {
         this.minStep = minStep;
     }
 
+    public int getMaxStep() {
+        return maxStep;
+    }
+
+    public void setMaxStep(int maxStep) {
+        this.maxStep = maxStep;
+    }
+
+    /**
+     * 累计发出的 ID 数，包括已被线程租用的 ID
+     * @return
+     */
+    public long getIssuedCount() {
+        Segment segment = current.get();
+        long start = segment.getMax() - segment.getStep();
+        return retiredCount.get() + Math.min(segment.getValue().get(), segment.getMax()) - start;
+    }
+
+    /**
+     * 采样累计发出的 ID 数，计算这段时间的发号速率，并更新指数加权移动平均。
+     * 只由装载号段的线程调用
+     *
+     * @param now 当前时间
+     */
+    public void updateRate(long now) {
+        long issuedCount = getIssuedCount();
+        if (rateTimestamp == 0) {
+            rateTimestamp = now;
+            rateIssuedCount = issuedCount;
+            return;
+        }
+        long elapsed = now - rateTimestamp;
+        if (elapsed < MIN_RATE_SAMPLE_MILLIS) {
+            return;
+        }
+        double sample = (issuedCount - rateIssuedCount) * 1000.0 / elapsed;
+        rate = rate == 0 ? sample : RATE_ALPHA * sample + (1 - RATE_ALPHA) * rate;
+        rateTimestamp = now;
+        rateIssuedCount = issuedCount;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    /**
+     * 按平滑后的发号速率估算从 segment 开始的已装载号段多久后发完，还没有速率样本时返回 Long.MAX_VALUE
+     *
+     * @param segment 当前号段
+     * @return 单位毫秒
+     */
+    public long getTimeToExhaustionMillis(Segment segment) {
+        double r = rate;
+        if (r <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long remaining = Math.max(segment.getIdle(), 0);
+        for (Segment s = segment.getNext(); s != null; s = s.getNext()) {
+            remaining += s.getStep();
+        }
+        return (long) (remaining * 1000 / r);
+    }
+
+    /**
+     * 记录一次从数据库装载号段的耗时，更新指数加权移动平均。只由装载号段的线程调用
+     *
+     * @param nanos 装载耗时，单位纳秒
+     */
+    public void updateLoadLatency(long nanos) {
+        double sample = nanos / 1000000.0;
+        loadLatencyMillis = loadLatencyMillis == 0 ? sample : RATE_ALPHA * sample + (1 - RATE_ALPHA) * loadLatencyMillis;
+    }
+
+    public double getLoadLatencyMillis() {
+        return loadLatencyMillis;
+    }
+
     public long getUpdateTimestamp() {
         return updateTimestamp;
     }
@@ -162,13 +465,22 @@ public class SegmentBuffer {
     public String toString() {
         final StringBuilder sb = new StringBuilder("SegmentBuffer{");
         sb.append("key='").append(key).append('\'');
-        sb.append(", segments=").append(Arrays.toString(segments));
-        sb.append(", currentPos=").append(currentPos);
-        sb.append(", nextReady=").append(nextReady);
+        sb.append(", current=").append(current.get());
+        sb.append(", ready=").append(getReadyCount(current.get()));
+        sb.append(", depth=").append(depth);
         sb.append(", initOk=").append(initOk);
         sb.append(", threadRunning=").append(threadRunning);
+        sb.append(", waitCount=").append(waitCount);
+        sb.append(", waitTimeMillis=").append(getWaitTimeMillis());
+        sb.append(", leaseSize=").append(leaseSize);
+        if (subRows > 1) {
+            sb.append(", subRow=").append(subRow).append('/').append(subRows);
+        }
         sb.append(", step=").append(step);
         sb.append(", minStep=").append(minStep);
+        sb.append(", maxStep=").append(maxStep);
+        sb.append(", rate=").append(String.format("%.2f", rate));
+        sb.append(", loadLatencyMillis=").append(String.format("%.2f", loadLatencyMillis));
         sb.append(", updateTimestamp=").append(updateTimestamp);
         sb.append('}');
         return sb.toString();
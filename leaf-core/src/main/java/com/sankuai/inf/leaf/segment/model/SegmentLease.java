@@ -0,0 +1,56 @@
+package com.sankuai.inf.leaf.segment.model;
+
+/**
+ * 线程从号段中租用的一小段 ID，[value, max)，只被持有它的线程访问，发号无需共享写
+ */
+public class SegmentLease {
+    /**
+     * 下一个要发的 ID
+     */
+    private long value;
+
+    /**
+     * 租用的最大 ID（不包含）
+     */
+    private long max;
+
+    /**
+     * 与号段相同的 ID 转换参数，发出的 ID 为 value * stride + offset
+     */
+    private int stride = 1;
+
+    private int offset;
+
+    public boolean hasRemaining() {
+        return value < max;
+    }
+
+    public long next() {
+        return (value++) * stride + offset;
+    }
+
+    /**
+     * 重新租用 [value, max)
+     * @param value
+     * @param max
+     * @param stride
+     * @param offset
+     */
+    public void reset(long value, long max, int stride, int offset) {
+        this.value = value;
+        this.max = max;
+        this.stride = stride;
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("SegmentLease(");
+        sb.append("value:");
+        sb.append(value);
+        sb.append(",max:");
+        sb.append(max);
+        sb.append(")");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,37 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 根据上一个号段的发号耗时调整步长：少于 15 分钟发完则步长翻倍，
+ * 15 ~ 30 分钟不调整，超过 30 分钟则步长减半
+ */
+public class DurationStepPolicy implements StepPolicy {
+
+    /**
+     * 一个 Segment 维持时间为15分钟
+     */
+    private static final long SEGMENT_DURATION = 15 * 60 * 1000L;
+
+    @Override
+    public int nextStep(SegmentBuffer buffer) {
+        long duration = System.currentTimeMillis() - buffer.getUpdateTimestamp();
+        int nextStep = buffer.getStep();
+        // 表示现在的步长太小，在 SEGMENT_DURATION（默认 15 分钟）内发完，
+        // 将步长乘以 2，即发号的数量增加，但不能超过最大步长
+        if (duration < SEGMENT_DURATION) {
+            if (nextStep * 2 > buffer.getMaxStep()) {
+                //do nothing
+            } else {
+                nextStep = nextStep * 2;
+            }
+        } else if (duration < SEGMENT_DURATION * 2) {
+            // 在 15 ~ 30 分钟则不用
+            //do nothing with nextStep
+        } else {
+            // 大于 30 分钟，则将步长减少一半
+            nextStep = nextStep / 2 >= buffer.getMinStep() ? nextStep / 2 : nextStep;
+        }
+        return nextStep;
+    }
+}
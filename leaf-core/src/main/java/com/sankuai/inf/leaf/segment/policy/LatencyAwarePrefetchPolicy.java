@@ -0,0 +1,72 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 根据发号速率和从数据库装载号段的耗时决定预装载时机：剩余的 ID 按当前速率发完所需的时间，
+ * 小于装载耗时的 safetyFactor 倍时开始装载，保证号段发完前下一个号段已经准备好。
+ * 热点 key 会更早装载，冷门 key 则等到快发完才装载。阈值不低于 minIdleRatio * step，
+ * 还没有速率或耗时样本时按固定比例 fallbackRatio 装载
+ */
+public class LatencyAwarePrefetchPolicy implements PrefetchPolicy {
+
+    /**
+     * 装载耗时的放大倍数，应对速率突增和数据库抖动
+     */
+    private double safetyFactor = 3;
+
+    /**
+     * 阈值的下限，占步长的比例
+     */
+    private double minIdleRatio = 0.1;
+
+    /**
+     * 没有样本时的阈值，占步长的比例，与原来发出 10% 时装载一致
+     */
+    private double fallbackRatio = 0.9;
+
+    public LatencyAwarePrefetchPolicy() {
+    }
+
+    public LatencyAwarePrefetchPolicy(double safetyFactor) {
+        this.safetyFactor = safetyFactor;
+    }
+
+    @Override
+    public long prefetchIdle(SegmentBuffer buffer, int step) {
+        double rate = buffer.getRate();
+        double latencyMillis = buffer.getLoadLatencyMillis();
+        // 没有样本或样本异常（NaN）时按固定比例
+        if (!(rate > 0) || !(latencyMillis > 0)) {
+            return (long) (fallbackRatio * step);
+        }
+        // 装载期间预计会发出的 ID 数
+        double idle = rate * latencyMillis / 1000 * safetyFactor;
+        idle = Math.max(idle, minIdleRatio * step);
+        return (long) Math.min(idle, step);
+    }
+
+    public double getSafetyFactor() {
+        return safetyFactor;
+    }
+
+    public void setSafetyFactor(double safetyFactor) {
+        this.safetyFactor = safetyFactor;
+    }
+
+    public double getMinIdleRatio() {
+        return minIdleRatio;
+    }
+
+    public void setMinIdleRatio(double minIdleRatio) {
+        this.minIdleRatio = minIdleRatio;
+    }
+
+    public double getFallbackRatio() {
+        return fallbackRatio;
+    }
+
+    public void setFallbackRatio(double fallbackRatio) {
+        this.fallbackRatio = fallbackRatio;
+    }
+}
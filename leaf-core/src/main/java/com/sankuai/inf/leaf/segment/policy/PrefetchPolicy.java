@@ -0,0 +1,19 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 预装载策略，决定号段剩余多少个 ID 时开始异步装载下一个号段。
+ * 每个号段从数据库装载时计算一次，发号时只需比较剩余 ID 数
+ */
+public interface PrefetchPolicy {
+
+    /**
+     * 计算新号段的预装载阈值，号段剩余的 ID 数小于该值时开始装载下一个号段
+     *
+     * @param buffer 该业务 key 的号段环
+     * @param step 新号段的步长
+     * @return 预装载阈值，在 [0, step] 之间
+     */
+    long prefetchIdle(SegmentBuffer buffer, int step);
+}
@@ -0,0 +1,49 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 根据平滑后的发号速率（每秒发出的 ID 数）调整步长，使下一个号段刚好能用 horizonSeconds 秒，
+ * 流量随时段变化时，访问数据库的频率保持平稳。还没有速率样本时按 DurationStepPolicy 调整
+ */
+public class RateStepPolicy implements StepPolicy {
+
+    /**
+     * 一个号段期望维持的时间，单位秒，默认 15 分钟
+     */
+    private long horizonSeconds = 15 * 60;
+
+    /**
+     * 刚启动还没有速率样本时使用的策略
+     */
+    private final StepPolicy fallback = new DurationStepPolicy();
+
+    public RateStepPolicy() {
+    }
+
+    public RateStepPolicy(long horizonSeconds) {
+        this.horizonSeconds = horizonSeconds;
+    }
+
+    @Override
+    public int nextStep(SegmentBuffer buffer) {
+        double rate = buffer.getRate();
+        // 没有样本或样本异常（NaN）时按 fallback 调整
+        if (!(rate > 0)) {
+            return fallback.nextStep(buffer);
+        }
+        // 先在 double 中夹到 [minStep, maxStep]，rate * horizonSeconds 超过 int 范围时也不会溢出
+        double nextStep = Math.ceil(rate * horizonSeconds);
+        nextStep = Math.max(nextStep, buffer.getMinStep());
+        nextStep = Math.min(nextStep, buffer.getMaxStep());
+        return (int) nextStep;
+    }
+
+    public long getHorizonSeconds() {
+        return horizonSeconds;
+    }
+
+    public void setHorizonSeconds(long horizonSeconds) {
+        this.horizonSeconds = horizonSeconds;
+    }
+}
@@ -0,0 +1,34 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 号段发出固定比例的 ID 后开始预装载，默认发出 10%，即剩余 90% 时
+ */
+public class RatioPrefetchPolicy implements PrefetchPolicy {
+
+    /**
+     * 剩余 ID 数占步长的比例
+     */
+    private double idleRatio = 0.9;
+
+    public RatioPrefetchPolicy() {
+    }
+
+    public RatioPrefetchPolicy(double idleRatio) {
+        this.idleRatio = idleRatio;
+    }
+
+    @Override
+    public long prefetchIdle(SegmentBuffer buffer, int step) {
+        return (long) (idleRatio * step);
+    }
+
+    public double getIdleRatio() {
+        return idleRatio;
+    }
+
+    public void setIdleRatio(double idleRatio) {
+        this.idleRatio = idleRatio;
+    }
+}
@@ -0,0 +1,18 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+
+/**
+ * 号段步长策略，第三次及之后从数据库装载号段时，决定下一个号段的步长
+ */
+public interface StepPolicy {
+
+    /**
+     * 根据该业务 key 的发号情况计算下一个号段的步长，结果应在
+     * [buffer.getMinStep(), buffer.getMaxStep()] 之间
+     *
+     * @param buffer 该业务 key 的号段环
+     * @return 下一个号段的步长
+     */
+    int nextStep(SegmentBuffer buffer);
+}
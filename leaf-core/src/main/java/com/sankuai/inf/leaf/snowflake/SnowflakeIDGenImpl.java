@@ -2,38 +2,102 @@ package com.sankuai.inf.leaf.snowflake;
 
 import com.google.common.base.Preconditions;
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IDRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
 import com.sankuai.inf.leaf.common.Utils;
+import com.sankuai.inf.leaf.snowflake.clock.Clock;
+import com.sankuai.inf.leaf.snowflake.clock.SystemClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SnowflakeIDGenImpl implements IDGen {
 
+    /**
+     * 开启借用时，等到创建时间之后 leadLimitMillis 毫秒再发号。
+     * 上一次运行的逻辑时钟最多领先真实时间 leadLimitMillis 毫秒，重启后立即发号可能与其重复
+     */
     @Override
     public boolean init() {
+        long wait = startTimestamp + leadLimitMillis - System.currentTimeMillis();
+        if (wait > 0) {
+            LOGGER.info("wait {}ms for the borrow budget before issuing ids", wait);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.error("wait interrupted");
+                return false;
+            }
+        }
         return true;
     }
 
     static private final Logger LOGGER = LoggerFactory.getLogger(SnowflakeIDGenImpl.class);
 
-    private final long twepoch = 1288834974657L;
-    private final long workerIdBits = 10L;
-
-    // 最大能够分配的 workerid = 1023
-    private final long maxWorkerId = -1L ^ (-1L << workerIdBits);
-    private final long sequenceBits = 12L;
-    private final long workerIdShift = sequenceBits;
-    private final long timestampLeftShift = sequenceBits + workerIdBits;
+    /**
+     * ID 的位布局，以下字段由布局计算，发号时直接使用
+     */
+    private final SnowflakeLayout layout;
+    private final long twepoch;
+    private final long sequenceBits;
+    private final long timestampLeftShift;
     // sequenceBits 为 12 时，sequenceMask = 4095
-    private final long sequenceMask = -1L ^ (-1L << sequenceBits);
+    private final long sequenceMask;
+    // 最大时间戳，超过后 ID 溢出
+    private final long maxTimestamp;
+    // 每毫秒序列号随机起点的上界，默认布局为 100
+    private final int randomSequenceBound;
     private long workerId;
-    private long sequence = 0L;
-    private long lastTimestamp = -1L;
+    private long datacenterId;
+    // 数据中心 ID 和 workerId 移位后的值
+    private long nodeBits;
+
+    /**
+     * 最近一次发号的时间戳和序列号，打包为 (lastTimestamp - twepoch) << sequenceBits | sequence，
+     * 即不含 workerId 的上一个 ID，通过 CAS 整体更新。-1 表示还没有发过号
+     */
+    private final AtomicLong state = new AtomicLong(-1L);
+    /**
+     * 读取当前时间和等待下一毫秒使用的时钟，默认每次读系统时钟、序列号用完时空转等待，需在发号前设置
+     */
+    private Clock clock = SystemClock.SPIN;
+    /**
+     * 时钟回拨时逻辑时钟最多领先真实时间的毫秒数，0 表示不借用，回拨 5 毫秒以内时等待、超过时返回异常。
+     * 大于 0 时时间戳不回退：回拨不超过该值时继续按最近一次发号的时间戳发号，序列号用完后顺延到下一毫秒，
+     * 真实时间追上后恢复正常；超过该值才返回异常。需在 init 之前设置
+     */
+    private long borrowBudgetMillis = 0;
+    /**
+     * 序列号用完时逻辑时钟最多领先真实时间的毫秒数，0 表示等待真实时间进入下一毫秒。
+     * 大于 0 时序列号用完后立即顺延到下一毫秒，突发请求不必等待；领先达到该值后才等待真实时间追上。需在 init 之前设置
+     */
+    private long overflowLeadMillis = 0;
+    /**
+     * 逻辑时钟最多领先真实时间的毫秒数，取 borrowBudgetMillis 与 overflowLeadMillis 的较大值。
+     * 领先的时间戳与回拨无法区分，回拨不超过该值时都继续发号
+     */
+    private long leadLimitMillis = 0;
+    private final long startTimestamp = System.currentTimeMillis();
+    /**
+     * 借用时间发号的次数，包括回拨和序列号用完顺延，getBatch 的每段算一次
+     */
+    private final AtomicLong borrowedCount = new AtomicLong();
+    /**
+     * 超出借用上限返回异常的次数
+     */
+    private final AtomicLong borrowRejectedCount = new AtomicLong();
+    /**
+     * 逻辑时钟领先真实时间的最大毫秒数
+     */
+    private final AtomicLong maxLeadMillis = new AtomicLong();
     public boolean initFlag = false;
-    private static final Random RANDOM = new Random();
     private int port;
 
     /**
@@ -42,6 +106,18 @@ public class SnowflakeIDGenImpl implements IDGen {
      * @param port
      */
     public SnowflakeIDGenImpl(String zkAddress, int port) {
+        this(zkAddress, port, SnowflakeLayout.DEFAULT, 0);
+    }
+
+    /**
+     * snowflake 算法生成，使用指定的位布局和数据中心 ID
+     * @param zkAddress
+     * @param port
+     * @param layout
+     * @param datacenterId
+     */
+    public SnowflakeIDGenImpl(String zkAddress, int port, SnowflakeLayout layout, long datacenterId) {
+        this(layout);
         this.port = port;
         // 创建对象
         SnowflakeZookeeperHolder holder = new SnowflakeZookeeperHolder(Utils.getIp(), String.valueOf(port), zkAddress);
@@ -53,7 +129,41 @@ public class SnowflakeIDGenImpl implements IDGen {
         } else {
             Preconditions.checkArgument(initFlag, "Snowflake Id Gen is not init ok");
         }
-        Preconditions.checkArgument(workerId >= 0 && workerId <= maxWorkerId, "workerID must gte 0 and lte 1023");
+        this.datacenterId = datacenterId;
+        this.nodeBits = layout.nodeBits(datacenterId, workerId);
+    }
+
+    /**
+     * 使用指定的 workerId，不通过 zookeeper 分配，由调用方保证 workerId 不重复
+     * @param workerId
+     */
+    public SnowflakeIDGenImpl(long workerId) {
+        this(SnowflakeLayout.DEFAULT, 0, workerId);
+    }
+
+    /**
+     * 使用指定的位布局、数据中心 ID 和 workerId，不通过 zookeeper 分配
+     * @param layout
+     * @param datacenterId
+     * @param workerId
+     */
+    public SnowflakeIDGenImpl(SnowflakeLayout layout, long datacenterId, long workerId) {
+        this(layout);
+        this.workerId = workerId;
+        this.datacenterId = datacenterId;
+        this.nodeBits = layout.nodeBits(datacenterId, workerId);
+        this.initFlag = true;
+    }
+
+    private SnowflakeIDGenImpl(SnowflakeLayout layout) {
+        this.layout = layout;
+        this.twepoch = layout.getEpoch();
+        this.sequenceBits = layout.getSequenceBits();
+        this.timestampLeftShift = layout.getTimestampShift();
+        this.sequenceMask = layout.getSequenceMask();
+        this.maxTimestamp = layout.getMaxTimestamp();
+        // 随机起点最多占用四分之一的序列号，避免序列号位数少时每毫秒可用的序列号过少
+        this.randomSequenceBound = (int) Math.max(1, Math.min(100, (sequenceMask + 1) / 4));
     }
 
     /**
@@ -63,52 +173,143 @@ public class SnowflakeIDGenImpl implements IDGen {
      * @return
      */
     @Override
-    public synchronized Result get(String key) {
-        long timestamp = timeGen();
-        if (timestamp < lastTimestamp) {
-            // 当前时间小于最近一次上报时间 lastTimestamp，发生回拨，计算时间差
-            long offset = lastTimestamp - timestamp;
-            if (offset <= 5) {
-                try {
-                    // 时间差小于等于 5 秒，则等待两倍时间，<< 1 表示左移一位，
-                    // 即乘以 2，使用位运算速度更快
-                    wait(offset << 1);
-                    timestamp = timeGen();
+    public Result get(String key) {
+        long id = nextIds(1);
+        if (id < 0) {
+            return new Result(id, Status.EXCEPTION);
+        }
+        return new Result(id, Status.SUCCESS);
+    }
+
+    /**
+     * 批量获取 n 个 ID，每次从当前毫秒剩余的序列号中一次预留一段连续的序列号，
+     * 当前毫秒不够时顺延到下一毫秒，同一毫秒内的 ID 连续，以号段的形式返回
+     *
+     * @param key
+     * @param n
+     * @return
+     */
+    @Override
+    public BatchResult getBatch(String key, int n) {
+        if (n <= 0) {
+            return new BatchResult(-4, Status.EXCEPTION);
+        }
+        List<IDRange> ranges = new ArrayList<IDRange>();
+        int remaining = n;
+        while (remaining > 0) {
+            long first = nextIds(remaining);
+            if (first < 0) {
+                return new BatchResult(first, Status.EXCEPTION);
+            }
+            int count = reservedCount(first, remaining);
+            ranges.add(new IDRange(first, count));
+            remaining -= count;
+        }
+        return new BatchResult(ranges);
+    }
+
+    /**
+     * 预留最多 count 个连续的 ID。不加锁，读取打包的时间戳和序列号，计算本次预留的时间戳和序列号后
+     * CAS 更新，CAS 失败说明其他线程已发号，重新读取后重试。
+     * 只在当前毫秒内预留，实际预留的个数由 reservedCount 计算
+     *
+     * @param count 需要的 ID 个数
+     * @return 第一个 ID，时钟回拨时返回负数的异常码
+     */
+    private long nextIds(int count) {
+        for (;;) {
+            long current = state.get();
+            long lastTimestamp = current < 0 ? -1L : (current >>> sequenceBits) + twepoch;
+            long now = timeGen();
+            long timestamp = now;
+            if (timestamp < lastTimestamp) {
+                // 当前时间小于最近一次上报时间 lastTimestamp，发生回拨，计算时间差
+                long offset = lastTimestamp - timestamp;
+                if (leadLimitMillis > 0) {
+                    if (offset > leadLimitMillis) {
+                        borrowRejectedCount.incrementAndGet();
+                        return -3;
+                    }
+                    // 逻辑时钟不回退，继续使用 lastTimestamp 发号
+                    timestamp = lastTimestamp;
+                } else if (offset <= 5) {
+                    try {
+                        // 时间差小于等于 5 毫秒，则等待两倍时间，<< 1 表示左移一位，
+                        // 即乘以 2，使用位运算速度更快
+                        Thread.sleep(offset << 1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        LOGGER.error("wait interrupted");
+                        return -2;
+                    }
                     // 再次判断当前时间是否小于最近一次上报时间 lastTimestamp，是则写入异常
-                    if (timestamp < lastTimestamp) {
-                        return new Result(-1, Status.EXCEPTION);
+                    if (timeGen() < lastTimestamp) {
+                        return -1;
+                    }
+                    // 时间已追上，重新读取状态发号
+                    continue;
+                } else {
+                    // 时间差大于 5 毫秒，则不等待当前时间超过最近一次上报时间，直接写入异常
+                    return -3;
+                }
+            }
+            long sequence;
+            // 最近一次上报时间等于当前时间，从上一个序列号之后开始预留
+            if (lastTimestamp == timestamp) {
+                sequence = (current & sequenceMask) + 1;
+                if (sequence > sequenceMask) {
+                    // 当前毫秒的序列号已用完，序列号从 randomSequenceBound 以内的随机数开始，
+                    // 获取大于 lastTimestamp 的当前时间
+                    sequence = ThreadLocalRandom.current().nextInt(randomSequenceBound);
+                    if (timestamp > now || overflowLeadMillis > 0) {
+                        // 正在借用时间或允许序列号用完时借用，不等待真实时间，在上限内顺延到下一毫秒
+                        timestamp = lastTimestamp + 1;
+                        if (timestamp - now > leadLimitMillis) {
+                            if (overflowLeadMillis == 0) {
+                                borrowRejectedCount.incrementAndGet();
+                                return -3;
+                            }
+                            // 领先已达上限，等真实时间追到上限以内后重新发号
+                            tilNextMillis(timestamp - leadLimitMillis - 1);
+                            continue;
+                        }
+                    } else {
+                        timestamp = tilNextMillis(lastTimestamp);
                     }
-                } catch (InterruptedException e) {
-                    LOGGER.error("wait interrupted");
-                    return new Result(-2, Status.EXCEPTION);
                 }
             } else {
-                // 时间差大于 5 秒，则不等待当前时间超过最近一次上报时间，直接写入异常
-                return new Result(-3, Status.EXCEPTION);
+                // 当前时间大于最近一次上报时间，随机生成 randomSequenceBound 以内的 sequence
+                sequence = ThreadLocalRandom.current().nextInt(randomSequenceBound);
             }
-        }
-        // 最近一次上报时间等于当前时间
-        if (lastTimestamp == timestamp) {
-            // 如果大于 sequenceMask，则是求余数
-            sequence = (sequence + 1) & sequenceMask;
-            if (sequence == 0) {
-                // seq 为 0 的时候是初始值，即第一次开始，对
-                // seq 做随机，sequence 用于生成 ID 值
-                sequence = RANDOM.nextInt(100);
-                // 获取大于 lastTimestamp 的当前时间
-                timestamp = tilNextMillis(lastTimestamp);
+            if (timestamp - twepoch > maxTimestamp) {
+                // 时间戳位数已用完
+                return -5;
+            }
+            long last = sequence + Math.min(count, sequenceMask - sequence + 1) - 1;
+            // 将当前时间和预留的最后一个序列号作为最近一次发号的状态，CAS 成功才能使用预留的序列号
+            if (state.compareAndSet(current, ((timestamp - twepoch) << sequenceBits) | last)) {
+                if (timestamp > now) {
+                    recordBorrow(timestamp - now);
+                }
+                // 生成 ID 值
+                return ((timestamp - twepoch) << timestampLeftShift) | nodeBits | sequence;
             }
-        } else {
-            // 当前时间大于最近一次上报时间，随机生成 100 以内的 sequence
-            sequence = RANDOM.nextInt(100);
         }
-        // 执行到这里，表明当前时间大于最近一次上报时间，将当前时间赋值
-        // 为 lastTimestamp，用于上报数据到 zookeeper
-        lastTimestamp = timestamp;
-        // 生成 ID 值
-        long id = ((timestamp - twepoch) << timestampLeftShift) | (workerId << workerIdShift) | sequence;
-        return new Result(id, Status.SUCCESS);
+    }
 
+    private void recordBorrow(long lead) {
+        borrowedCount.incrementAndGet();
+        long max = maxLeadMillis.get();
+        while (lead > max && !maxLeadMillis.compareAndSet(max, lead)) {
+            max = maxLeadMillis.get();
+        }
+    }
+
+    /**
+     * nextIds(count) 从 first 开始实际预留的 ID 个数，不超过当前毫秒剩余的序列号数
+     */
+    private int reservedCount(long first, int count) {
+        return (int) Math.min(count, sequenceMask - (first & sequenceMask) + 1);
     }
 
     /**
@@ -118,11 +319,7 @@ public class SnowflakeIDGenImpl implements IDGen {
      * @return
      */
     protected long tilNextMillis(long lastTimestamp) {
-        long timestamp = timeGen();
-        while (timestamp <= lastTimestamp) {
-            timestamp = timeGen();
-        }
-        return timestamp;
+        return clock.tilNextMillis(lastTimestamp);
     }
 
     /**
@@ -130,11 +327,70 @@ public class SnowflakeIDGenImpl implements IDGen {
      * @return
      */
     protected long timeGen() {
-        return System.currentTimeMillis();
+        return clock.currentTimeMillis();
     }
 
     public long getWorkerId() {
         return workerId;
     }
 
+    public long getDatacenterId() {
+        return datacenterId;
+    }
+
+    public SnowflakeLayout getLayout() {
+        return layout;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = Preconditions.checkNotNull(clock, "clock");
+    }
+
+    public long getBorrowBudgetMillis() {
+        return borrowBudgetMillis;
+    }
+
+    public void setBorrowBudgetMillis(long borrowBudgetMillis) {
+        Preconditions.checkArgument(borrowBudgetMillis >= 0, "borrowBudgetMillis must not be negative, got %s", borrowBudgetMillis);
+        this.borrowBudgetMillis = borrowBudgetMillis;
+        this.leadLimitMillis = Math.max(borrowBudgetMillis, overflowLeadMillis);
+    }
+
+    public long getOverflowLeadMillis() {
+        return overflowLeadMillis;
+    }
+
+    public void setOverflowLeadMillis(long overflowLeadMillis) {
+        Preconditions.checkArgument(overflowLeadMillis >= 0, "overflowLeadMillis must not be negative, got %s", overflowLeadMillis);
+        this.overflowLeadMillis = overflowLeadMillis;
+        this.leadLimitMillis = Math.max(borrowBudgetMillis, overflowLeadMillis);
+    }
+
+    /**
+     * 逻辑时钟当前领先真实时间的毫秒数，没有借用时为 0
+     */
+    public long getLeadMillis() {
+        long current = state.get();
+        if (current < 0) {
+            return 0;
+        }
+        return Math.max(0, (current >>> sequenceBits) + twepoch - timeGen());
+    }
+
+    public long getMaxLeadMillis() {
+        return maxLeadMillis.get();
+    }
+
+    public long getBorrowedCount() {
+        return borrowedCount.get();
+    }
+
+    public long getBorrowRejectedCount() {
+        return borrowRejectedCount.get();
+    }
+
 }
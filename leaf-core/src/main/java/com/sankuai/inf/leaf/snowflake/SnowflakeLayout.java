@@ -0,0 +1,156 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * snowflake ID 的位布局，从高位到低位依次为：符号位 0、时间戳、数据中心 ID、workerID、序列号。
+ * 生成和反解析 ID 使用同一个布局对象，创建时校验参数，构造完成后不可变。
+ * 默认布局与原来一致：epoch 为 1288834974657，时间戳 41 位、无数据中心位、workerID 10 位、序列号 12 位
+ */
+public class SnowflakeLayout {
+
+    public static final long DEFAULT_EPOCH = 1288834974657L;
+
+    public static final SnowflakeLayout DEFAULT = new SnowflakeLayout(DEFAULT_EPOCH, 41, 0, 10, 12);
+
+    /**
+     * 时间戳的起点，单位毫秒
+     */
+    private final long epoch;
+    private final int timestampBits;
+    private final int datacenterIdBits;
+    private final int workerIdBits;
+    private final int sequenceBits;
+
+    private final int workerIdShift;
+    private final int datacenterIdShift;
+    private final int timestampShift;
+    private final long maxTimestamp;
+    private final long maxDatacenterId;
+    private final long maxWorkerId;
+    private final long sequenceMask;
+
+    public SnowflakeLayout(long epoch, int timestampBits, int datacenterIdBits, int workerIdBits, int sequenceBits) {
+        Preconditions.checkArgument(epoch >= 0 && epoch <= System.currentTimeMillis(),
+                "epoch must be between 0 and now, got %s", epoch);
+        Preconditions.checkArgument(timestampBits >= 1, "timestampBits must be positive, got %s", timestampBits);
+        Preconditions.checkArgument(datacenterIdBits >= 0, "datacenterIdBits must not be negative, got %s", datacenterIdBits);
+        Preconditions.checkArgument(workerIdBits >= 0, "workerIdBits must not be negative, got %s", workerIdBits);
+        Preconditions.checkArgument(sequenceBits >= 1, "sequenceBits must be positive, got %s", sequenceBits);
+        Preconditions.checkArgument(timestampBits + datacenterIdBits + workerIdBits + sequenceBits <= 63,
+                "total bits must not exceed 63, got %s", timestampBits + datacenterIdBits + workerIdBits + sequenceBits);
+        this.epoch = epoch;
+        this.timestampBits = timestampBits;
+        this.datacenterIdBits = datacenterIdBits;
+        this.workerIdBits = workerIdBits;
+        this.sequenceBits = sequenceBits;
+        this.workerIdShift = sequenceBits;
+        this.datacenterIdShift = sequenceBits + workerIdBits;
+        this.timestampShift = sequenceBits + workerIdBits + datacenterIdBits;
+        this.maxTimestamp = ~(-1L << timestampBits);
+        this.maxDatacenterId = ~(-1L << datacenterIdBits);
+        this.maxWorkerId = ~(-1L << workerIdBits);
+        this.sequenceMask = ~(-1L << sequenceBits);
+        Preconditions.checkArgument(System.currentTimeMillis() - epoch <= maxTimestamp,
+                "%s timestamp bits from epoch %s are already exhausted", timestampBits, epoch);
+    }
+
+    /**
+     * 数据中心 ID 和 workerID 移位后的值，同一个节点发出的 ID 中这部分不变
+     *
+     * @param datacenterId
+     * @param workerId
+     * @return
+     */
+    public long nodeBits(long datacenterId, long workerId) {
+        Preconditions.checkArgument(datacenterId >= 0 && datacenterId <= maxDatacenterId,
+                "datacenterId must gte 0 and lte %s, got %s", maxDatacenterId, datacenterId);
+        Preconditions.checkArgument(workerId >= 0 && workerId <= maxWorkerId,
+                "workerID must gte 0 and lte %s, got %s", maxWorkerId, workerId);
+        return (datacenterId << datacenterIdShift) | (workerId << workerIdShift);
+    }
+
+    /**
+     * 组装 ID
+     *
+     * @param timestamp 毫秒时间戳，不减 epoch
+     * @param datacenterId
+     * @param workerId
+     * @param sequence
+     * @return
+     */
+    public long toId(long timestamp, long datacenterId, long workerId, long sequence) {
+        return ((timestamp - epoch) << timestampShift) | nodeBits(datacenterId, workerId) | (sequence & sequenceMask);
+    }
+
+    /**
+     * 反解析 ID 中的毫秒时间戳，已加上 epoch
+     */
+    public long timestampOf(long id) {
+        return (id >>> timestampShift) + epoch;
+    }
+
+    public long datacenterIdOf(long id) {
+        return (id >>> datacenterIdShift) & maxDatacenterId;
+    }
+
+    public long workerIdOf(long id) {
+        return (id >>> workerIdShift) & maxWorkerId;
+    }
+
+    public long sequenceOf(long id) {
+        return id & sequenceMask;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getTimestampBits() {
+        return timestampBits;
+    }
+
+    public int getDatacenterIdBits() {
+        return datacenterIdBits;
+    }
+
+    public int getWorkerIdBits() {
+        return workerIdBits;
+    }
+
+    public int getSequenceBits() {
+        return sequenceBits;
+    }
+
+    public int getTimestampShift() {
+        return timestampShift;
+    }
+
+    public long getMaxTimestamp() {
+        return maxTimestamp;
+    }
+
+    public long getMaxDatacenterId() {
+        return maxDatacenterId;
+    }
+
+    public long getMaxWorkerId() {
+        return maxWorkerId;
+    }
+
+    public long getSequenceMask() {
+        return sequenceMask;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("SnowflakeLayout{");
+        sb.append("epoch=").append(epoch);
+        sb.append(", timestampBits=").append(timestampBits);
+        sb.append(", datacenterIdBits=").append(datacenterIdBits);
+        sb.append(", workerIdBits=").append(workerIdBits);
+        sb.append(", sequenceBits=").append(sequenceBits);
+        sb.append('}');
+        return sb.toString();
+    }
+}
@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
@@ -47,6 +48,11 @@ public class SnowflakeZookeeperHolder {
     private String connectionString;
     private long lastUpdateTime;
 
+    /**
+     * 定时上报本机时间的线程池，close 时关闭
+     */
+    private volatile ScheduledExecutorService uploadExecutor;
+
     public SnowflakeZookeeperHolder(String ip, String port, String connectionString) {
         this.ip = ip;
         this.port = port;
@@ -71,13 +77,17 @@ public class SnowflakeZookeeperHolder {
      * @return
      */
     public boolean init() {
+        return init(createCurator(connectionString));
+    }
+
+    /**
+     * 使用已启动的 zookeeper 连接初始化，同一个进程申请多个 workerID 时可以共用一个连接
+     *
+     * @param curator
+     * @return
+     */
+    public boolean init(CuratorFramework curator) {
         try {
-            // 基于 Apache Curator 框架的 ZooKeeper 的介绍 https://www.zifangsky.cn/1166.html
-            // new RetryUntilElapsed(1000, 4)，调用默认的重试策略，重试的时间超过最大重试时间 1000 就不再重试，
-            // 否则间隔 4 进行重试基于配置信息，创建连接实例
-            CuratorFramework curator = createWithOptions(connectionString, new RetryUntilElapsed(1000,
-                    4), 10000, 6000);
-            curator.start();
             // 检查根节点 forever 是否存在
             Stat stat = curator.checkExists().forPath(PATH_FOREVER);
             if (stat == null) {
@@ -150,6 +160,16 @@ public class SnowflakeZookeeperHolder {
         return true;
     }
 
+    /**
+     * 停止定时上报本机时间，zookeeper 连接由创建方关闭
+     */
+    public void close() {
+        ScheduledExecutorService executor = uploadExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
     // /snowflake_forever/ip:port-000000001
     private void doService(CuratorFramework curator) {
         ScheduledUploadData(curator, zk_AddressNode);
@@ -160,14 +180,15 @@ public class SnowflakeZookeeperHolder {
      * 数据为由 ip、端口、本机时间戳组成的 json
      */
     private void ScheduledUploadData(final CuratorFramework curator, final String zk_AddressNode) {
-        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        uploadExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
                 Thread thread = new Thread(r, "schedule-upload-time");
                 thread.setDaemon(true);
                 return thread;
             }
-        }).scheduleWithFixedDelay(new Runnable() {
+        });
+        uploadExecutor.scheduleWithFixedDelay(new Runnable() {
             @Override
             public void run() {
                 updateNewData(curator, zk_AddressNode);
@@ -283,7 +304,23 @@ public class SnowflakeZookeeperHolder {
         }
     }
 
-    private CuratorFramework createWithOptions(String connectionString, RetryPolicy retryPolicy, int connectionTimeoutMs, int sessionTimeoutMs) {
+    /**
+     * 创建并启动 zookeeper 连接
+     *
+     * @param connectionString
+     * @return
+     */
+    public static CuratorFramework createCurator(String connectionString) {
+        // 基于 Apache Curator 框架的 ZooKeeper 的介绍 https://www.zifangsky.cn/1166.html
+        // new RetryUntilElapsed(1000, 4)，调用默认的重试策略，重试的时间超过最大重试时间 1000 就不再重试，
+        // 否则间隔 4 进行重试基于配置信息，创建连接实例
+        CuratorFramework curator = createWithOptions(connectionString, new RetryUntilElapsed(1000,
+                4), 10000, 6000);
+        curator.start();
+        return curator;
+    }
+
+    private static CuratorFramework createWithOptions(String connectionString, RetryPolicy retryPolicy, int connectionTimeoutMs, int sessionTimeoutMs) {
         return CuratorFrameworkFactory.builder().connectString(connectionString)
                 .retryPolicy(retryPolicy)
                 .connectionTimeoutMs(connectionTimeoutMs)
@@ -0,0 +1,231 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import com.google.common.base.Preconditions;
+import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Utils;
+import com.sankuai.inf.leaf.snowflake.clock.Clock;
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一个节点申请多个 workerID，每个 workerID 一个条带（SnowflakeIDGenImpl），各自有独立的时间戳和序列号：
+ * 1. 每次发号轮询选择条带，并发的发号分散到不同条带上 CAS，单个线程也能用满所有条带的序列号；
+ * 2. 每个条带每毫秒最多 4096 个 ID，单节点每毫秒最多发 4096 * 条带数 个 ID；
+ * 3. ID 的位布局不变，只是一个节点占用多个 workerID。不同条带的 ID 交错，本节点发出的 ID 只保证按毫秒趋势递增；
+ * 4. 每个节点在 zookeeper 中注册条带数个永久顺序节点，节点不会回收，更换 ip:port 重新部署后旧节点仍占用 workerID，
+ *    workerID 空间（默认 10 位，1024 个）的消耗速度是单 workerID 的条带数倍，启动时校验所有 workerID 不超过布局的上限。
+ */
+public class StripedSnowflakeIDGenImpl implements IDGen, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StripedSnowflakeIDGenImpl.class);
+
+    private final SnowflakeIDGenImpl[] stripes;
+
+    /**
+     * 轮询选择条带的计数器
+     */
+    private final AtomicInteger nextStripe = new AtomicInteger();
+
+    /**
+     * 各条带共用的 zookeeper 连接，用于定时上报本机时间，close 时关闭。不通过 zookeeper 分配时为 null
+     */
+    private CuratorFramework curator;
+
+    private final List<SnowflakeZookeeperHolder> holders = new ArrayList<SnowflakeZookeeperHolder>();
+
+    /**
+     * 从 zookeeper 申请 stripes 个 workerID。第 0 个条带使用 ip:port，与 SnowflakeIDGenImpl 相同，
+     * 第 i 个条带使用 ip:port_i 作为 zookeeper 中的节点名和本地缓存 workerID 的目录，重启后仍使用相同的 workerID。
+     * 所有条带注册完成后校验 workerID 不超过布局的上限，失败时关闭 zookeeper 连接
+     *
+     * @param zkAddress
+     * @param port
+     * @param stripes 条带数，即申请的 workerID 数
+     */
+    public StripedSnowflakeIDGenImpl(String zkAddress, int port, int stripes) {
+        this(zkAddress, port, stripes, SnowflakeLayout.DEFAULT, 0);
+    }
+
+    /**
+     * 从 zookeeper 申请 stripes 个 workerID，使用指定的位布局和数据中心 ID
+     *
+     * @param zkAddress
+     * @param port
+     * @param stripes 条带数，即申请的 workerID 数
+     * @param layout
+     * @param datacenterId
+     */
+    public StripedSnowflakeIDGenImpl(String zkAddress, int port, int stripes, SnowflakeLayout layout, long datacenterId) {
+        Preconditions.checkArgument(stripes >= 1, "stripes must be positive");
+        this.stripes = new SnowflakeIDGenImpl[stripes];
+        this.curator = SnowflakeZookeeperHolder.createCurator(zkAddress);
+        long[] workerIds = new long[stripes];
+        try {
+            Set<Long> distinct = new HashSet<Long>();
+            for (int i = 0; i < stripes; i++) {
+                String holderPort = i == 0 ? String.valueOf(port) : port + "_" + i;
+                SnowflakeZookeeperHolder holder = new SnowflakeZookeeperHolder(Utils.getIp(), holderPort, zkAddress);
+                holders.add(holder);
+                Preconditions.checkArgument(holder.init(curator), "Snowflake Id Gen is not init ok, port " + holderPort);
+                workerIds[i] = holder.getWorkerID();
+                Preconditions.checkArgument(distinct.add(workerIds[i]), "duplicate workerID " + workerIds[i]);
+            }
+            checkWorkerIds(layout, workerIds);
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new SnowflakeIDGenImpl(layout, datacenterId, workerIds[i]);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        LOGGER.info("START SUCCESS USE ZK WORKERIDS-{}", Arrays.toString(workerIds));
+    }
+
+    /**
+     * 校验 zookeeper 分配的 workerID 都不超过布局的 workerID 位数。
+     * 顺序节点的编号只增不减，每个节点占用多个编号，超过上限说明 zookeeper 中残留了过多的旧节点
+     */
+    private static void checkWorkerIds(SnowflakeLayout layout, long[] workerIds) {
+        long maxWorkerId = ~(-1L << layout.getWorkerIdBits());
+        for (int i = 0; i < workerIds.length; i++) {
+            Preconditions.checkArgument(workerIds[i] <= maxWorkerId,
+                    "workerID %s of stripe %s exceeds max workerID %s of %s worker bits, each node registers %s workerIDs, "
+                            + "remove stale nodes in zookeeper or reduce the stripes",
+                    workerIds[i], i, maxWorkerId, layout.getWorkerIdBits(), workerIds.length);
+        }
+    }
+
+    /**
+     * 使用指定的 workerID，不通过 zookeeper 分配，由调用方保证 workerID 不重复
+     *
+     * @param workerIds
+     */
+    public StripedSnowflakeIDGenImpl(long... workerIds) {
+        this(SnowflakeLayout.DEFAULT, 0, workerIds);
+    }
+
+    /**
+     * 使用指定的位布局、数据中心 ID 和 workerID，不通过 zookeeper 分配
+     *
+     * @param layout
+     * @param datacenterId
+     * @param workerIds
+     */
+    public StripedSnowflakeIDGenImpl(SnowflakeLayout layout, long datacenterId, long... workerIds) {
+        Preconditions.checkArgument(workerIds.length >= 1, "workerIds must not be empty");
+        this.stripes = new SnowflakeIDGenImpl[workerIds.length];
+        Set<Long> distinct = new HashSet<Long>();
+        for (int i = 0; i < workerIds.length; i++) {
+            Preconditions.checkArgument(distinct.add(workerIds[i]), "duplicate workerID " + workerIds[i]);
+            this.stripes[i] = new SnowflakeIDGenImpl(layout, datacenterId, workerIds[i]);
+        }
+    }
+
+    /**
+     * 依次初始化各条带，开启借用时各条带从同一时刻开始等待，总共只等待一次借用上限
+     */
+    @Override
+    public boolean init() {
+        for (SnowflakeIDGenImpl stripe : stripes) {
+            if (!stripe.init()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Result get(String key) {
+        return stripe().get(key);
+    }
+
+    /**
+     * 从轮询选中的条带批量获取，超过一毫秒的序列号数时顺延到下一毫秒
+     */
+    @Override
+    public BatchResult getBatch(String key, int n) {
+        return stripe().getBatch(key, n);
+    }
+
+    /**
+     * 轮询选择本次发号的条带。按线程固定条带时，一个发号很快的线程会在自己的条带上等待下一毫秒，
+     * 其他条带却空闲；轮询只有一次原子加，不会像 CAS 一样失败重试
+     */
+    private SnowflakeIDGenImpl stripe() {
+        return stripes[(nextStripe.getAndIncrement() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    /**
+     * 停止各条带定时上报本机时间并关闭 zookeeper 连接，在节点下线时调用。关闭后仍可发号，
+     * 但 zookeeper 中记录的时间不再更新
+     */
+    @Override
+    public void close() {
+        for (SnowflakeZookeeperHolder holder : holders) {
+            holder.close();
+        }
+        if (curator != null) {
+            curator.close();
+            curator = null;
+        }
+    }
+
+    /**
+     * 所有条带使用同一个时钟，需在发号前设置
+     */
+    public void setClock(Clock clock) {
+        for (SnowflakeIDGenImpl stripe : stripes) {
+            stripe.setClock(clock);
+        }
+    }
+
+    public Clock getClock() {
+        return stripes[0].getClock();
+    }
+
+    /**
+     * 所有条带使用相同的借用上限，需在 init 之前设置
+     */
+    public void setBorrowBudgetMillis(long borrowBudgetMillis) {
+        for (SnowflakeIDGenImpl stripe : stripes) {
+            stripe.setBorrowBudgetMillis(borrowBudgetMillis);
+        }
+    }
+
+    /**
+     * 所有条带使用相同的序列号用完时的领先上限，需在 init 之前设置
+     */
+    public void setOverflowLeadMillis(long overflowLeadMillis) {
+        for (SnowflakeIDGenImpl stripe : stripes) {
+            stripe.setOverflowLeadMillis(overflowLeadMillis);
+        }
+    }
+
+    public List<SnowflakeIDGenImpl> getStripes() {
+        return Collections.unmodifiableList(Arrays.asList(stripes));
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long[] getWorkerIds() {
+        long[] workerIds = new long[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            workerIds[i] = stripes[i].getWorkerId();
+        }
+        return workerIds;
+    }
+}
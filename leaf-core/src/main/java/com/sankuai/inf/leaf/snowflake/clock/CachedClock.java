@@ -0,0 +1,85 @@
+package com.sankuai.inf.leaf.snowflake.clock;
+
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 后台线程每隔 tickMicros 微秒读取一次 System.currentTimeMillis() 写入 volatile 变量，
+ * 发号时只读这个变量，不再调用系统时钟。
+ * 读到的时间最多落后真实时间一个 tick 加上线程调度的延迟，只影响 ID 中的时间戳，不影响唯一性；
+ * 等待下一毫秒时按 tick 的一半 park，不空转。
+ * 不再使用时调用 close() 停止后台线程
+ */
+public class CachedClock implements Clock, Closeable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachedClock.class);
+
+    public static final long DEFAULT_TICK_MICROS = 500L;
+
+    private final long tickNanos;
+    private final Thread ticker;
+    private volatile long now;
+    private volatile boolean running = true;
+
+    public CachedClock() {
+        this(DEFAULT_TICK_MICROS);
+    }
+
+    /**
+     * @param tickMicros 刷新间隔，单位微秒，不超过 1 毫秒
+     */
+    public CachedClock(long tickMicros) {
+        Preconditions.checkArgument(tickMicros >= 1 && tickMicros <= 1000,
+                "tickMicros must be between 1 and 1000, got %s", tickMicros);
+        this.tickNanos = TimeUnit.MICROSECONDS.toNanos(tickMicros);
+        this.now = System.currentTimeMillis();
+        this.ticker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running) {
+                    now = System.currentTimeMillis();
+                    LockSupport.parkNanos(tickNanos);
+                }
+                LOGGER.info("cached clock stopped");
+            }
+        }, "Leaf-Snowflake-Clock");
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        // 关闭后不再刷新，直接读系统时钟
+        return running ? now : System.currentTimeMillis();
+    }
+
+    @Override
+    public long tilNextMillis(long lastTimestamp) {
+        long timestamp = currentTimeMillis();
+        while (timestamp <= lastTimestamp) {
+            LockSupport.parkNanos(tickNanos >> 1);
+            timestamp = currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(ticker);
+    }
+
+    public long getTickMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(tickNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "CachedClock{tickMicros=" + getTickMicros() + "}";
+    }
+}
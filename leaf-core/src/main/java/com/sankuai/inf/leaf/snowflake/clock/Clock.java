@@ -0,0 +1,20 @@
+package com.sankuai.inf.leaf.snowflake.clock;
+
+/**
+ * snowflake 发号使用的毫秒时钟，决定如何读取当前时间以及序列号用完时如何等待下一毫秒
+ */
+public interface Clock {
+
+    /**
+     * 当前时间，单位毫秒
+     */
+    long currentTimeMillis();
+
+    /**
+     * 等待时钟走到 lastTimestamp 之后
+     *
+     * @param lastTimestamp
+     * @return 大于 lastTimestamp 的当前时间
+     */
+    long tilNextMillis(long lastTimestamp);
+}
@@ -0,0 +1,48 @@
+package com.sankuai.inf.leaf.snowflake.clock;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 每次直接读取 System.currentTimeMillis()。
+ * SPIN 在等待下一毫秒时空转，与原来的实现一致，延迟最低但占满一个 CPU；
+ * PARK 每次等待 PARK_NANOS 纳秒后再读时钟，不占用 CPU，代价是跨毫秒后最多多等一个 PARK_NANOS
+ */
+public class SystemClock implements Clock {
+
+    public static final SystemClock SPIN = new SystemClock(false);
+
+    public static final SystemClock PARK = new SystemClock(true);
+
+    /**
+     * 等待下一毫秒时每次 park 的时间，单位纳秒
+     */
+    static final long PARK_NANOS = 50000L;
+
+    private final boolean park;
+
+    private SystemClock(boolean park) {
+        this.park = park;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public long tilNextMillis(long lastTimestamp) {
+        long timestamp = System.currentTimeMillis();
+        while (timestamp <= lastTimestamp) {
+            if (park) {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            timestamp = System.currentTimeMillis();
+        }
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return park ? "SystemClock{park}" : "SystemClock{spin}";
+    }
+}
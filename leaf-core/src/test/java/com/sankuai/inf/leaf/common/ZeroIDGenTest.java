@@ -0,0 +1,29 @@
+package com.sankuai.inf.leaf.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ZeroIDGenTest {
+
+    /**
+     * 与 get 一致，批量获取返回 n 个 0，数量不合法时返回 -4
+     */
+    @Test
+    public void testGetBatch() {
+        ZeroIDGen idGen = new ZeroIDGen();
+        idGen.setMaxBatchSize(100);
+        BatchResult r = idGen.getBatch("zero", 100);
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(100, r.size());
+        long[] ids = r.toArray();
+        Assert.assertEquals(100, ids.length);
+        for (long id : ids) {
+            Assert.assertEquals(0, id);
+        }
+        for (int n : new int[]{0, -1, 101}) {
+            r = idGen.getBatch("zero", n);
+            Assert.assertEquals(Status.EXCEPTION, r.getStatus());
+            Assert.assertEquals(-4, r.getCode());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.sankuai.inf.leaf.segment;
 
 import com.alibaba.druid.pool.DruidDataSource;
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
@@ -44,6 +45,13 @@ public class IDGenServiceTest {
             System.out.println(r);
         }
     }
+    @Test
+    public void testGetBatch() {
+        for (int i = 0; i < 10; ++i) {
+            BatchResult r = idGen.getBatch("leaf-segment-test", 500);
+            System.out.println(r);
+        }
+    }
     @After
     public void after() {
        dataSource.close();
@@ -0,0 +1,101 @@
+package com.sankuai.inf.leaf.segment;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RefillSchedulerTest {
+    RefillScheduler scheduler;
+
+    @After
+    public void after() {
+        scheduler.shutdown();
+    }
+
+    /**
+     * 排队的任务按预计发完时间执行，越快发完越先执行，预计发完时间相同时先提交先执行
+     */
+    @Test
+    public void testPriority() throws InterruptedException {
+        scheduler = new RefillScheduler(1, 100);
+        CountDownLatch blocker = block(scheduler);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(5);
+        submit(scheduler, 300, "c", order, done);
+        submit(scheduler, 100, "a1", order, done);
+        submit(scheduler, 60000, "d", order, done);
+        submit(scheduler, 200, "b", order, done);
+        submit(scheduler, 100, "a2", order, done);
+        Assert.assertEquals(5, scheduler.getQueueSize());
+        blocker.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a1", "a2", "b", "c", "d"), order);
+        Assert.assertTrue(scheduler.getRefillCount() >= 5);
+        Assert.assertTrue(scheduler.getAvgQueueMillis() > 0);
+    }
+
+    /**
+     * 排队的任务数达到 maxQueueSize 时拒绝提交
+     */
+    @Test
+    public void testRejectWhenQueueFull() throws InterruptedException {
+        scheduler = new RefillScheduler(1, 2);
+        CountDownLatch blocker = block(scheduler);
+        final List<String> order = new CopyOnWriteArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(2);
+        Assert.assertTrue(submit(scheduler, 0, "a", order, done));
+        Assert.assertTrue(submit(scheduler, 0, "b", order, done));
+        Assert.assertFalse(submit(scheduler, 0, "c", order, done));
+        Assert.assertEquals(1, scheduler.getRejectedCount());
+        blocker.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a", "b"), order);
+        // 队列空出后可以继续提交
+        Assert.assertTrue(submit(scheduler, 0, "d", order, new CountDownLatch(1)));
+        Assert.assertEquals(1, scheduler.getRejectedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalWorkers() {
+        scheduler = new RefillScheduler(1, 1);
+        new RefillScheduler(0, 1);
+    }
+
+    /**
+     * 提交一个阻塞的任务占住工作线程，返回的 latch 放开后任务结束
+     */
+    private static CountDownLatch block(RefillScheduler scheduler) throws InterruptedException {
+        final CountDownLatch blocker = new CountDownLatch(1);
+        Assert.assertTrue(scheduler.submit(0, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        while (scheduler.getActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+        return blocker;
+    }
+
+    private static boolean submit(RefillScheduler scheduler, long timeToExhaustionMillis, final String name,
+                                  final List<String> order, final CountDownLatch done) {
+        return scheduler.submit(timeToExhaustionMillis, new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        });
+    }
+}
@@ -0,0 +1,704 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.dao.impl.FileIDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 基于 FileIDAllocDaoImpl 的号段模式测试，不需要数据库
+ */
+public class SegmentIDGenImplTest {
+    File journal;
+    FileIDAllocDaoImpl fileDao;
+    StubIDAllocDao dao;
+    SegmentIDGenImpl idGen;
+
+    @Before
+    public void before() throws IOException {
+        journal = File.createTempFile("leaf-alloc", ".journal");
+        journal.delete();
+        fileDao = new FileIDAllocDaoImpl(journal.getPath());
+        dao = new StubIDAllocDao(fileDao);
+        idGen = new SegmentIDGenImpl();
+        idGen.setDao(dao);
+    }
+
+    @After
+    public void after() {
+        dao.openGate();
+        idGen.getRefillScheduler().shutdown();
+        fileDao.close();
+        journal.delete();
+        new File(journal.getPath() + ".tmp").delete();
+    }
+
+    /**
+     * 步长为 10，多个线程不断切换号段，发出的 ID 不重复且个数与请求数一致
+     */
+    @Test
+    public void testConcurrentSwitch() throws Exception {
+        fileDao.createTagIfAbsent("switch", 0, 10);
+        idGen.setMaxStep(10);
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final int perThread = 5000;
+        Thread[] threads = new Thread[16];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            Result r = idGen.get("switch");
+                            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                            Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        Assert.assertEquals(threads.length * perThread, ids.size());
+        SegmentBuffer buffer = idGen.getCache().get("switch");
+        Assert.assertEquals(10, buffer.getStep());
+        // 每个号段只被切换掉一次，累计发出的 ID 数不少于请求数，超出的部分是当前号段越过 max 的 value
+        Assert.assertTrue(buffer.getIssuedCount() >= threads.length * perThread);
+        Assert.assertTrue(buffer.getIssuedCount() <= threads.length * perThread + 10);
+    }
+
+    /**
+     * 装载阻塞时，当前号段发完的线程最多等待 waitTimeoutMillis 后返回异常，并记录等待次数和时间
+     */
+    @Test
+    public void testWaitTimeout() throws Exception {
+        fileDao.createTagIfAbsent("timeout", 0, 10);
+        idGen.setMaxStep(10);
+        idGen.setWaitTimeoutMillis(50);
+        idGen.init();
+        long last = idGen.get("timeout").getId();
+        SegmentBuffer buffer = idGen.getCache().get("timeout");
+        // 关闭闸门，之后的装载都阻塞
+        dao.closeGate();
+        Result r = null;
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 30; i++) {
+            r = idGen.get("timeout");
+            if (r.getStatus() != Status.SUCCESS) {
+                break;
+            }
+            last = r.getId();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertEquals(Status.EXCEPTION, r.getStatus());
+        Assert.assertEquals(-3, r.getId());
+        Assert.assertTrue(elapsed >= 45);
+        Assert.assertEquals(1, buffer.getWaitCount());
+        Assert.assertTrue(buffer.getWaitTimeMillis() >= 45);
+        Assert.assertTrue(buffer.getThreadRunning().get());
+        // 装载完成后恢复发号
+        dao.openGate();
+        r = idGen.get("timeout");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(last + 1, r.getId());
+    }
+
+    /**
+     * 装载完成时唤醒等待的线程，不用等到超时
+     */
+    @Test
+    public void testWaitSignalled() throws Exception {
+        fileDao.createTagIfAbsent("signal", 0, 10);
+        idGen.setMaxStep(10);
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, idGen.get("signal").getId());
+        }
+        SegmentBuffer buffer = idGen.getCache().get("signal");
+        // 第二个号段装载完成后关闭闸门，让第三个号段的装载阻塞 100 毫秒
+        awaitRefill(buffer);
+        dao.closeGate();
+        Thread opener = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                dao.openGate();
+            }
+        });
+        opener.start();
+        long start = System.currentTimeMillis();
+        Result r = null;
+        for (int i = 0; i < 20; i++) {
+            r = idGen.get("signal");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        opener.join();
+        Assert.assertEquals(29, r.getId());
+        Assert.assertTrue("waited " + elapsed + "ms", elapsed < 2000);
+        Assert.assertEquals(1, buffer.getWaitCount());
+    }
+
+    /**
+     * 合并装载：同一窗口内触发装载的 key 一次装载，号段环仍没装满的 key 放回队列继续装载
+     */
+    @Test
+    public void testBatchRefill() throws Exception {
+        String[] keys = {"batch-0", "batch-1", "batch-2", "batch-3"};
+        for (String key : keys) {
+            fileDao.createTagIfAbsent(key, 0, 10);
+        }
+        idGen.setMaxStep(10);
+        idGen.setBufferDepth(3);
+        idGen.setRefillBatchSize(4);
+        idGen.setRefillBatchWindowMillis(20);
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        // 前两次装载不合并，先发过前两个号段
+        for (String key : keys) {
+            for (int i = 0; i < 25; i++) {
+                Assert.assertEquals(i, idGen.get(key).getId());
+            }
+        }
+        for (String key : keys) {
+            awaitRefill(idGen.getCache().get(key));
+        }
+        // 关闭闸门，发完每个 key 已装载的所有 ID，号段环空了，合并装载阻塞在数据库
+        dao.closeGate();
+        int batches = dao.getBatchSizes().size();
+        for (String key : keys) {
+            SegmentBuffer buffer = idGen.getCache().get(key);
+            long remaining = buffer.getCurrent().getIdle() + 10L * buffer.getReadyCount(buffer.getCurrent());
+            for (int i = 0; i < remaining; i++) {
+                Assert.assertEquals(Status.SUCCESS, idGen.get(key).getStatus());
+            }
+        }
+        dao.openGate();
+        for (String key : keys) {
+            SegmentBuffer buffer = idGen.getCache().get(key);
+            awaitRefill(buffer);
+            // 一次合并装载只给每个 key 装一个号段，装满需要放回队列再装载一次
+            Assert.assertEquals(2, buffer.getReadyCount(buffer.getCurrent()));
+        }
+        Assert.assertTrue(dao.getBatchSizes().size() - batches >= 2);
+        for (int size : dao.getBatchSizes()) {
+            Assert.assertTrue(size <= 4);
+        }
+        Assert.assertTrue(dao.getBatchSizes().contains(4));
+    }
+
+    /**
+     * 多个合并装载任务可以在不同的工作线程上同时访问数据库
+     */
+    @Test
+    public void testBatchRefillConcurrency() throws Exception {
+        idGen.setRefillScheduler(new RefillScheduler(4, 100));
+        idGen.setMaxStep(10);
+        idGen.setRefillBatchSize(2);
+        idGen.setRefillBatchWindowMillis(1);
+        idGen.setWaitTimeoutMillis(5000);
+        final String[] keys = new String[8];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "concurrent-" + i;
+            fileDao.createTagIfAbsent(keys[i], 0, 10);
+        }
+        idGen.init();
+        for (String key : keys) {
+            for (int i = 0; i < 25; i++) {
+                idGen.get(key);
+            }
+            awaitRefill(idGen.getCache().get(key));
+            dao.setDelay(key, 50);
+        }
+        int batches = dao.getBatchSizes().size();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[keys.length];
+        for (int i = 0; i < threads.length; i++) {
+            final String key = keys[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 30; j++) {
+                            Assert.assertEquals(Status.SUCCESS, idGen.get(key).getStatus());
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        Assert.assertTrue(dao.getBatchSizes().size() > batches);
+        Assert.assertTrue("max concurrent allocs " + dao.getMaxConcurrentAllocs(), dao.getMaxConcurrentAllocs() > 1);
+    }
+
+    /**
+     * 调度队列已满时合并装载被拒绝，复位待合并的 buffer，下一次发号时重新装载
+     */
+    @Test
+    public void testBatchRefillRejected() throws Exception {
+        RefillScheduler scheduler = new RefillScheduler(1, 1);
+        idGen.setRefillScheduler(scheduler);
+        idGen.setMaxStep(10);
+        idGen.setRefillBatchSize(4);
+        idGen.setRefillBatchWindowMillis(1);
+        idGen.setWaitTimeoutMillis(5000);
+        fileDao.createTagIfAbsent("rejected", 0, 10);
+        idGen.init();
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals(i, idGen.get("rejected").getId());
+        }
+        SegmentBuffer buffer = idGen.getCache().get("rejected");
+        awaitRefill(buffer);
+        // 占住唯一的工作线程并填满队列
+        final CountDownLatch latch = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Assert.assertTrue(scheduler.submit(0, blocker));
+        while (scheduler.getActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+        Assert.assertTrue(scheduler.submit(0, blocker));
+        long rejected = scheduler.getRejectedCount();
+        // 切换到已装载好的下一个号段并发到预装载阈值以下，触发合并装载
+        for (int i = 25; i < 34; i++) {
+            Assert.assertEquals(i, idGen.get("rejected").getId());
+        }
+        while (scheduler.getRejectedCount() == rejected) {
+            Thread.sleep(1);
+        }
+        awaitRefill(buffer);
+        Assert.assertFalse(buffer.isNextReady());
+        latch.countDown();
+        // 放开后下一次发号重新触发装载，号段连续
+        for (int i = 34; i < 60; i++) {
+            Assert.assertEquals(i, idGen.get("rejected").getId());
+        }
+    }
+
+    /**
+     * 拆分为 3 个子行，三个节点分别从不同子行装载，发出的 ID 为 value * 3 + 子行下标，互不重叠
+     */
+    @Test
+    public void testSubRowsDisjoint() throws Exception {
+        createSubRows("hot", 3);
+        SegmentIDGenImpl[] idGens = new SegmentIDGenImpl[3];
+        for (int i = 0; i < idGens.length; i++) {
+            idGens[i] = i == 0 ? idGen : new SegmentIDGenImpl();
+            idGens[i].setDao(dao);
+            idGens[i].setTagSubRows(Collections.singletonMap("hot", 3));
+            idGens[i].setSubRowSlowMillis(10000);
+            idGens[i].init();
+            idGens[i].getCache().get("hot").setSubRow(i);
+        }
+        try {
+            Set<Long> ids = new HashSet<Long>();
+            for (int j = 0; j < 100; j++) {
+                for (int i = 0; i < idGens.length; i++) {
+                    Result r = idGens[i].get("hot");
+                    Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                    Assert.assertEquals(i, r.getId() % 3);
+                    Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                }
+            }
+            Assert.assertEquals(300, ids.size());
+        } finally {
+            idGens[1].getRefillScheduler().shutdown();
+            idGens[2].getRefillScheduler().shutdown();
+        }
+    }
+
+    /**
+     * 当前子行装载失败时换到下一个子行重试
+     */
+    @Test
+    public void testSubRowFailover() throws Exception {
+        createSubRows("hot", 3);
+        idGen.setTagSubRows(Collections.singletonMap("hot", 3));
+        idGen.init();
+        SegmentBuffer buffer = idGen.getCache().get("hot");
+        buffer.setSubRow(0);
+        dao.setFailing("hot#0", true);
+        Result r = idGen.get("hot");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(1, r.getId() % 3);
+        Assert.assertEquals(1, buffer.getSubRow());
+        Assert.assertFalse(dao.getAllocatedTags().contains("hot#0"));
+        // 所有子行都失败时返回异常
+        dao.setFailing("hot#1", true);
+        dao.setFailing("hot#2", true);
+        SegmentIDGenImpl other = new SegmentIDGenImpl();
+        other.setDao(dao);
+        other.setTagSubRows(Collections.singletonMap("hot", 3));
+        try {
+            other.init();
+            Assert.assertEquals(Status.EXCEPTION, other.get("hot").getStatus());
+        } finally {
+            other.getRefillScheduler().shutdown();
+        }
+    }
+
+    /**
+     * 子行装载耗时超过 subRowSlowMillis 时，下次装载换到下一个子行
+     */
+    @Test
+    public void testSubRowSlowSwitch() throws Exception {
+        createSubRows("hot", 3);
+        idGen.setTagSubRows(Collections.singletonMap("hot", 3));
+        idGen.setSubRowSlowMillis(20);
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        SegmentBuffer buffer = idGen.getCache().get("hot");
+        buffer.setSubRow(0);
+        dao.setDelay("hot#0", 50);
+        Result r = idGen.get("hot");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(0, r.getId() % 3);
+        Assert.assertEquals(1, buffer.getSubRow());
+        // 第一个号段发完后从子行 1 装载
+        boolean switched = false;
+        for (int i = 0; i < 30 && !switched; i++) {
+            r = idGen.get("hot");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            switched = r.getId() % 3 == 1;
+        }
+        Assert.assertTrue(switched);
+        Assert.assertTrue(dao.getAllocatedTags().contains("hot#1"));
+    }
+
+    /**
+     * 预热只装载 warmUpTags 中的 key，开启 warmUpNextSegment 时同时装载第二个号段
+     */
+    @Test
+    public void testWarmUp() throws Exception {
+        fileDao.createTagIfAbsent("warm-a", 0, 10);
+        fileDao.createTagIfAbsent("warm-b", 0, 10);
+        fileDao.createTagIfAbsent("cold", 0, 10);
+        idGen.setWarmUpEnabled(true);
+        idGen.setWarmUpTags(new HashSet<String>(Arrays.asList("warm-a", "warm-b")));
+        idGen.setWarmUpNextSegment(true);
+        idGen.setWarmUpConcurrency(2);
+        idGen.init();
+        for (String tag : Arrays.asList("warm-a", "warm-b")) {
+            SegmentBuffer buffer = idGen.getCache().get(tag);
+            Assert.assertTrue(buffer.isInitOk());
+            Assert.assertEquals(1, buffer.getReadyCount(buffer.getCurrent()));
+            Assert.assertEquals(2, Collections.frequency(dao.getAllocatedTags(), tag));
+        }
+        Assert.assertFalse(idGen.getCache().get("cold").isInitOk());
+        Assert.assertFalse(dao.getAllocatedTags().contains("cold"));
+        // 预热过的 key 发号不再访问数据库
+        int allocs = dao.getAllocatedTags().size();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i, idGen.get("warm-a").getId());
+        }
+        Assert.assertEquals(allocs, dao.getAllocatedTags().size());
+    }
+
+    /**
+     * 预热超时后 init 直接返回，未预热完的 key 在第一次发号时装载
+     */
+    @Test
+    public void testWarmUpTimeout() throws Exception {
+        fileDao.createTagIfAbsent("fast", 0, 10);
+        fileDao.createTagIfAbsent("slow", 0, 10);
+        dao.setDelay("slow", 5000);
+        idGen.setWarmUpEnabled(true);
+        idGen.setWarmUpTimeoutMillis(100);
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(idGen.init());
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue("init took " + elapsed, elapsed < 2000);
+        Assert.assertTrue(idGen.getCache().get("fast").isInitOk());
+        SegmentBuffer slow = idGen.getCache().get("slow");
+        Assert.assertFalse(slow.isInitOk());
+        dao.setDelay("slow", 0);
+        Result r = idGen.get("slow");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(0, r.getId());
+        Assert.assertTrue(slow.isInitOk());
+    }
+
+    /**
+     * 每次租用不超过号段 step 的 1/16，各线程从自己租用的 ID 段发号
+     */
+    @Test
+    public void testLeaseCappedByStep() throws Exception {
+        fileDao.createTagIfAbsent("lease", 0, 160);
+        idGen.setMaxStep(160);
+        idGen.setLeaseSize(1000);
+        idGen.init();
+        Assert.assertEquals(0, idGen.get("lease").getId());
+        Assert.assertEquals(10, idGen.getCache().get("lease").getCurrent().getValue().get());
+        final AtomicReference<Result> other = new AtomicReference<Result>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                other.set(idGen.get("lease"));
+            }
+        });
+        thread.start();
+        thread.join();
+        Assert.assertEquals(10, other.get().getId());
+        for (int i = 1; i < 10; i++) {
+            Assert.assertEquals(i, idGen.get("lease").getId());
+        }
+        Assert.assertEquals(20, idGen.get("lease").getId());
+    }
+
+    /**
+     * 批量获取的个数需在 1 到 maxBatchSize 之间，否则返回 -4，不消耗号段
+     */
+    @Test
+    public void testBatchSizeBound() throws Exception {
+        fileDao.createTagIfAbsent("batch", 0, 10);
+        idGen.setMaxBatchSize(25);
+        idGen.init();
+        for (int n : new int[]{0, -1, 26, Integer.MAX_VALUE}) {
+            BatchResult r = idGen.getBatch("batch", n);
+            Assert.assertEquals(Status.EXCEPTION, r.getStatus());
+            Assert.assertEquals(-4, r.getCode());
+        }
+        BatchResult r = idGen.getBatch("batch", 25);
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        long[] ids = r.toArray();
+        Assert.assertEquals(25, ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(i, ids[i]);
+        }
+    }
+
+    /**
+     * 增量同步只查询新建的 key 并添加到缓存，不访问全量查询
+     */
+    @Test
+    public void testDeltaSync() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.init();
+        Assert.assertEquals(1, dao.getFullSyncs());
+        fileDao.createTagIfAbsent("new", 0, 10);
+        Assert.assertFalse(idGen.getCache().containsKey("new"));
+        idGen.updateCacheFromDb();
+        Assert.assertTrue(idGen.getCache().containsKey("new"));
+        Assert.assertEquals(1, dao.getFullSyncs());
+        Assert.assertEquals(1, dao.getDeltaSyncs());
+    }
+
+    /**
+     * 上次同步之前创建、之后才提交的 key，只有查询起点向前多取的窗口覆盖到时才能被增量同步发现
+     */
+    @Test
+    public void testDeltaSyncOverlap() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        fileDao.createTagIfAbsent("late", 0, 10);
+        dao.setHidden("late", true);
+        Thread.sleep(20);
+        idGen.init();
+        Assert.assertFalse(idGen.getCache().containsKey("late"));
+        dao.setHidden("late", false);
+        idGen.setSyncOverlapMillis(0);
+        idGen.updateCacheFromDb();
+        Assert.assertFalse(idGen.getCache().containsKey("late"));
+        idGen.setSyncOverlapMillis(60000);
+        idGen.updateCacheFromDb();
+        Assert.assertTrue(idGen.getCache().containsKey("late"));
+        Assert.assertEquals(1, dao.getFullSyncs());
+    }
+
+    /**
+     * 删除的 key 增量同步发现不了，到了全量同步的间隔才从缓存中删去
+     */
+    @Test
+    public void testFullSyncRemovesDeletedTags() throws Exception {
+        fileDao.createTagIfAbsent("kept", 0, 10);
+        fileDao.createTagIfAbsent("deleted", 0, 10);
+        idGen.init();
+        dao.setHidden("deleted", true);
+        idGen.updateCacheFromDb();
+        Assert.assertTrue(idGen.getCache().containsKey("deleted"));
+        Assert.assertEquals(1, dao.getFullSyncs());
+        idGen.setFullSyncIntervalMillis(0);
+        idGen.updateCacheFromDb();
+        Assert.assertFalse(idGen.getCache().containsKey("deleted"));
+        Assert.assertTrue(idGen.getCache().containsKey("kept"));
+        Assert.assertEquals(2, dao.getFullSyncs());
+        Assert.assertEquals(1, dao.getDeltaSyncs());
+    }
+
+    /**
+     * 增量查询失败（如还没有 create_time 列）时退回全量同步，新增的 key 仍在本次同步中加入缓存
+     */
+    @Test
+    public void testDeltaSyncFallback() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.init();
+        fileDao.createTagIfAbsent("new", 0, 10);
+        dao.setDeltaFailing(true);
+        idGen.updateCacheFromDb();
+        Assert.assertTrue(idGen.getCache().containsKey("new"));
+        Assert.assertEquals(1, dao.getDeltaSyncs());
+        Assert.assertEquals(2, dao.getFullSyncs());
+        // 增量查询恢复后不再全量同步
+        dao.setDeltaFailing(false);
+        idGen.updateCacheFromDb();
+        Assert.assertEquals(2, dao.getDeltaSyncs());
+        Assert.assertEquals(2, dao.getFullSyncs());
+    }
+
+    /**
+     * 缓存中没有的 key 被多个线程同时请求时，只有一个线程查询数据库
+     */
+    @Test
+    public void testLoadTagSingleFlight() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.init();
+        fileDao.createTagIfAbsent("new", 0, 1000);
+        dao.setDelay("new", 100);
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicReference<Result> failed = new AtomicReference<Result>();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    Result r = idGen.get("new");
+                    if (r.getStatus() == Status.SUCCESS) {
+                        ids.add(r.getId());
+                    } else {
+                        failed.set(r);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Assert.assertNull(failed.get());
+        Assert.assertEquals(threads, ids.size());
+        Assert.assertEquals(1, dao.getLookups());
+    }
+
+    /**
+     * 不存在的 key 在 missingTagTtlMillis 内不再查询数据库，过期后重新查询
+     */
+    @Test
+    public void testMissingTagTtl() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.setMissingTagTtlMillis(100);
+        idGen.init();
+        Assert.assertEquals(-2, idGen.get("later").getId());
+        Assert.assertEquals(1, dao.getLookups());
+        fileDao.createTagIfAbsent("later", 0, 10);
+        Assert.assertEquals(-2, idGen.get("later").getId());
+        Assert.assertEquals(1, dao.getLookups());
+        Thread.sleep(150);
+        Result r = idGen.get("later");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(0, r.getId());
+        Assert.assertEquals(2, dao.getLookups());
+    }
+
+    /**
+     * 记录的不存在 key 达到上限后不再查询数据库，定时同步清理过期记录后恢复
+     */
+    @Test
+    public void testMaxMissingTags() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.setMissingTagTtlMillis(50);
+        idGen.setMaxMissingTags(2);
+        idGen.init();
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(-2, idGen.get("random-" + i).getId());
+        }
+        Assert.assertEquals(2, dao.getLookups());
+        Thread.sleep(100);
+        idGen.updateCacheFromDb();
+        Assert.assertEquals(-2, idGen.get("random-9").getId());
+        Assert.assertEquals(3, dao.getLookups());
+    }
+
+    /**
+     * 按需查询数据库失败时返回 -1，不当作 key 不存在，也不记录到 missingTags
+     */
+    @Test
+    public void testLoadTagFailure() throws Exception {
+        fileDao.createTagIfAbsent("old", 0, 10);
+        idGen.init();
+        fileDao.createTagIfAbsent("broken", 0, 10);
+        dao.setFailing("broken", true);
+        Result r = idGen.get("broken");
+        Assert.assertEquals(Status.EXCEPTION, r.getStatus());
+        Assert.assertEquals(-1, r.getId());
+        Assert.assertEquals(-1, idGen.getBatch("broken", 1).getCode());
+        dao.setFailing("broken", false);
+        r = idGen.get("broken");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(0, r.getId());
+    }
+
+    private void createSubRows(String tag, int subRows) {
+        for (int i = 0; i < subRows; i++) {
+            fileDao.createTagIfAbsent(tag + SegmentBuffer.SUB_ROW_SEPARATOR + i, 0, 10);
+        }
+    }
+
+    static void awaitRefill(SegmentBuffer buffer) throws InterruptedException {
+        while (buffer.getThreadRunning().get()) {
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.sankuai.inf.leaf.segment;
+
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 测试用的 IDAllocDao，分配委托给另一个 dao（一般是 FileIDAllocDaoImpl），可以：
+ * 1. 关闭闸门，让分配阻塞到打开为止；
+ * 2. 让指定 tag 的分配和按需查询变慢或失败；
+ * 3. 记录每次分配的 tag 和合并分配的 key 数；
+ * 4. 隐藏指定 tag，模拟还未提交或已删除的行，以及让增量同步的查询失败
+ */
+public class StubIDAllocDao implements IDAllocDao {
+
+    private final IDAllocDao delegate;
+
+    private volatile CountDownLatch gate;
+
+    private final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+
+    private final Set<String> failingTags = java.util.Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final List<String> allocatedTags = new CopyOnWriteArrayList<String>();
+
+    private final List<Integer> batchSizes = new CopyOnWriteArrayList<Integer>();
+
+    private final Set<String> hiddenTags = java.util.Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile boolean deltaFailing;
+
+    private final AtomicInteger fullSyncs = new AtomicInteger();
+
+    private final AtomicInteger deltaSyncs = new AtomicInteger();
+
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private final AtomicInteger concurrentAllocs = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrentAllocs = new AtomicInteger();
+
+    public StubIDAllocDao(IDAllocDao delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * 关闭闸门，之后的分配阻塞到 openGate 为止
+     */
+    public void closeGate() {
+        gate = new CountDownLatch(1);
+    }
+
+    public void openGate() {
+        CountDownLatch g = gate;
+        gate = null;
+        if (g != null) {
+            g.countDown();
+        }
+    }
+
+    public void setDelay(String tag, long millis) {
+        delays.put(tag, millis);
+    }
+
+    public void setFailing(String tag, boolean failing) {
+        if (failing) {
+            failingTags.add(tag);
+        } else {
+            failingTags.remove(tag);
+        }
+    }
+
+    /**
+     * 隐藏的 tag 不出现在 getAllTags 和 getTagsCreatedSince 的结果中
+     */
+    public void setHidden(String tag, boolean hidden) {
+        if (hidden) {
+            hiddenTags.add(tag);
+        } else {
+            hiddenTags.remove(tag);
+        }
+    }
+
+    public void setDeltaFailing(boolean deltaFailing) {
+        this.deltaFailing = deltaFailing;
+    }
+
+    public int getFullSyncs() {
+        return fullSyncs.get();
+    }
+
+    public int getDeltaSyncs() {
+        return deltaSyncs.get();
+    }
+
+    public int getLookups() {
+        return lookups.get();
+    }
+
+    public List<String> getAllocatedTags() {
+        return allocatedTags;
+    }
+
+    public List<Integer> getBatchSizes() {
+        return batchSizes;
+    }
+
+    public int getMaxConcurrentAllocs() {
+        return maxConcurrentAllocs.get();
+    }
+
+    private void beforeAlloc(String tag) {
+        int concurrent = concurrentAllocs.incrementAndGet();
+        int max = maxConcurrentAllocs.get();
+        while (concurrent > max && !maxConcurrentAllocs.compareAndSet(max, concurrent)) {
+            max = maxConcurrentAllocs.get();
+        }
+        try {
+            CountDownLatch g = gate;
+            if (g != null) {
+                g.await(10, TimeUnit.SECONDS);
+            }
+            Long delay = delays.get(tag);
+            if (delay != null) {
+                Thread.sleep(delay);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        }
+        if (failingTags.contains(tag)) {
+            concurrentAllocs.decrementAndGet();
+            throw new IllegalStateException("alloc " + tag + " failed");
+        }
+        allocatedTags.add(tag);
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdAndGetLeafAlloc(String tag) {
+        beforeAlloc(tag);
+        try {
+            return delegate.updateMaxIdAndGetLeafAlloc(tag);
+        } finally {
+            concurrentAllocs.decrementAndGet();
+        }
+    }
+
+    @Override
+    public LeafAlloc updateMaxIdByCustomStepAndGetLeafAlloc(LeafAlloc leafAlloc) {
+        beforeAlloc(leafAlloc.getKey());
+        try {
+            return delegate.updateMaxIdByCustomStepAndGetLeafAlloc(leafAlloc);
+        } finally {
+            concurrentAllocs.decrementAndGet();
+        }
+    }
+
+    @Override
+    public List<LeafAlloc> updateMaxIdByCustomStepAndGetLeafAllocs(List<LeafAlloc> leafAllocs) {
+        beforeAlloc(leafAllocs.get(0).getKey());
+        try {
+            batchSizes.add(leafAllocs.size());
+            return delegate.updateMaxIdByCustomStepAndGetLeafAllocs(leafAllocs);
+        } finally {
+            concurrentAllocs.decrementAndGet();
+        }
+    }
+
+    @Override
+    public List<LeafAlloc> getAllLeafAllocs() {
+        return delegate.getAllLeafAllocs();
+    }
+
+    @Override
+    public List<String> getAllTags() {
+        fullSyncs.incrementAndGet();
+        return visible(delegate.getAllTags());
+    }
+
+    @Override
+    public LeafAlloc getLeafAlloc(String tag) {
+        lookups.incrementAndGet();
+        Long delay = delays.get(tag);
+        if (delay != null) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted", e);
+            }
+        }
+        if (failingTags.contains(tag)) {
+            throw new IllegalStateException("lookup " + tag + " failed");
+        }
+        return hiddenTags.contains(tag) ? null : delegate.getLeafAlloc(tag);
+    }
+
+    @Override
+    public List<String> getTagsCreatedSince(Date since) {
+        deltaSyncs.incrementAndGet();
+        if (deltaFailing) {
+            throw new IllegalStateException("Unknown column 'create_time'");
+        }
+        return visible(delegate.getTagsCreatedSince(since));
+    }
+
+    private List<String> visible(List<String> tags) {
+        List<String> result = new ArrayList<String>(tags.size());
+        for (String tag : tags) {
+            if (!hiddenTags.contains(tag)) {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,167 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.RefillScheduler;
+import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
+import com.sankuai.inf.leaf.segment.dao.AsyncIDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BlockingAsyncIDAllocDaoTest {
+    File journal;
+    FileIDAllocDaoImpl dao;
+    ExecutorService executor;
+
+    @Before
+    public void before() throws IOException {
+        journal = File.createTempFile("leaf-alloc", ".journal");
+        journal.delete();
+        dao = new FileIDAllocDaoImpl(journal.getPath());
+        dao.createTagIfAbsent("leaf-async-test", 0, 100);
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void after() throws IOException {
+        executor.shutdownNow();
+        dao.close();
+        journal.delete();
+    }
+
+    @Test
+    public void testCallback() throws InterruptedException {
+        BlockingAsyncIDAllocDao asyncDao = new BlockingAsyncIDAllocDao(dao, executor);
+        final AtomicReference<LeafAlloc> success = new AtomicReference<LeafAlloc>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch latch = new CountDownLatch(2);
+        AsyncIDAllocDao.AllocCallback callback = new AsyncIDAllocDao.AllocCallback() {
+            @Override
+            public void onSuccess(LeafAlloc leafAlloc) {
+                success.set(leafAlloc);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable cause) {
+                failure.set(cause);
+                latch.countDown();
+            }
+        };
+        asyncDao.updateMaxIdAndGetLeafAlloc("leaf-async-test", callback);
+        asyncDao.updateMaxIdAndGetLeafAlloc("leaf-async-not-exists", callback);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(100, success.get().getMaxId());
+        Assert.assertTrue(failure.get() instanceof IllegalStateException);
+    }
+
+    /**
+     * 异步装载同样经过调度器，队列已满时拒绝并复位装载标记，放开后继续发号
+     */
+    @Test
+    public void testAsyncRefillRejected() throws Exception {
+        SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        RefillScheduler scheduler = new RefillScheduler(1, 1);
+        idGen.setRefillScheduler(scheduler);
+        idGen.setDao(dao);
+        idGen.setAsyncDao(new BlockingAsyncIDAllocDao(dao, executor));
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        try {
+            Assert.assertEquals(0, idGen.get("leaf-async-test").getId());
+            // 占住唯一的工作线程并填满队列
+            final CountDownLatch latch = new CountDownLatch(1);
+            Runnable blocker = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            Assert.assertTrue(scheduler.submit(0, blocker));
+            while (scheduler.getActiveCount() == 0) {
+                Thread.sleep(1);
+            }
+            Assert.assertTrue(scheduler.submit(0, blocker));
+            long last = 0;
+            for (int i = 0; i < 99 && scheduler.getRejectedCount() == 0; i++) {
+                last = idGen.get("leaf-async-test").getId();
+            }
+            Assert.assertTrue(scheduler.getRejectedCount() > 0);
+            SegmentBuffer buffer = idGen.getCache().get("leaf-async-test");
+            Assert.assertFalse(buffer.getThreadRunning().get());
+            latch.countDown();
+            // 等占位任务跑完，否则号段耗尽前的重新触发仍会被拒绝
+            while (scheduler.getQueueSize() > 0 || scheduler.getActiveCount() > 0) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 300; i++) {
+                Result r = idGen.get("leaf-async-test");
+                Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                Assert.assertEquals(++last, r.getId());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testSegmentIDGen() throws Exception {
+        final SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        idGen.setDao(dao);
+        idGen.setAsyncDao(new BlockingAsyncIDAllocDao(dao, executor));
+        // 等待装载的时间放宽，只验证异步装载的正确性，不受机器负载影响
+        idGen.setWaitTimeoutMillis(5000);
+        idGen.init();
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        // 工作线程中的断言失败不会传到 JUnit，记录下来在主线程检查
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final int perThread = 10000;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < perThread; j++) {
+                            Result r = idGen.get("leaf-async-test");
+                            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                            Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        Assert.assertEquals(threads.length * perThread, ids.size());
+        // 异步装载由调度器发起
+        Assert.assertTrue(idGen.getRefillScheduler().getRefillCount() > 0);
+        idGen.getRefillScheduler().shutdown();
+    }
+}
@@ -0,0 +1,94 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FileIDAllocDaoImplTest {
+    File journal;
+
+    @Before
+    public void before() throws IOException {
+        journal = File.createTempFile("leaf-alloc", ".journal");
+        journal.delete();
+    }
+
+    @After
+    public void after() {
+        journal.delete();
+        new File(journal.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testRecoverAfterRestart() throws IOException {
+        FileIDAllocDaoImpl dao = new FileIDAllocDaoImpl(journal.getPath());
+        Assert.assertTrue(dao.createTagIfAbsent("leaf-file-test", 1, 1000));
+        Assert.assertFalse(dao.createTagIfAbsent("leaf-file-test", 1, 1000));
+        long maxId = 0;
+        for (int i = 0; i < 25; i++) {
+            maxId = dao.updateMaxIdAndGetLeafAlloc("leaf-file-test").getMaxId();
+        }
+        Assert.assertEquals(25001, maxId);
+        // 不调用 close，模拟宕机，重启后从预留上限继续分配，不会重复
+        FileIDAllocDaoImpl reopened = new FileIDAllocDaoImpl(journal.getPath());
+        LeafAlloc leafAlloc = reopened.updateMaxIdAndGetLeafAlloc("leaf-file-test");
+        Assert.assertTrue(leafAlloc.getMaxId() - leafAlloc.getStep() >= maxId);
+        Assert.assertEquals(1000, leafAlloc.getStep());
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        FileIDAllocDaoImpl dao = new FileIDAllocDaoImpl(journal.getPath(), 1024, 0);
+        dao.createTagIfAbsent("a", 0, 10);
+        dao.createTagIfAbsent("b", 0, 20);
+        long maxId = 0;
+        for (int i = 0; i < 1000; i++) {
+            maxId = dao.updateMaxIdAndGetLeafAlloc("a").getMaxId();
+            dao.updateMaxIdAndGetLeafAlloc("b");
+        }
+        Assert.assertEquals(10000, maxId);
+        FileIDAllocDaoImpl reopened = new FileIDAllocDaoImpl(journal.getPath(), 1024, 0);
+        Assert.assertEquals(10000, reopened.getLeafAlloc("a").getMaxId());
+        Assert.assertEquals(20000, reopened.getLeafAlloc("b").getMaxId());
+    }
+
+    @Test
+    public void testSegmentIDGen() throws Exception {
+        FileIDAllocDaoImpl dao = new FileIDAllocDaoImpl(journal.getPath());
+        dao.createTagIfAbsent("leaf-file-test", 1, 100);
+        final SegmentIDGenImpl idGen = new SegmentIDGenImpl();
+        idGen.setDao(dao);
+        idGen.init();
+        final Set<Long> ids = java.util.Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        Result r = idGen.get("leaf-file-test");
+                        if (r.getStatus() == Status.SUCCESS) {
+                            Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.println(ids.size() + " ids, " + idGen.getCache().get("leaf-file-test"));
+        dao.close();
+    }
+}
@@ -0,0 +1,89 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.alibaba.druid.pool.DruidDataSource;
+import com.sankuai.inf.leaf.common.PropertyFactory;
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * 对比 MyBatis 和 JDBC 两种 IDAllocDao 的装载耗时，需要在 leaf.properties 中配置数据库，
+ * 并在 leaf_alloc 中插入 leaf-segment-test
+ */
+public class JdbcIDAllocDaoImplTest {
+    private static final String TAG = "leaf-segment-test";
+    private static final int WARM_UP = 1000;
+    private static final int ROUNDS = 10000;
+
+    DruidDataSource dataSource;
+
+    @Before
+    public void before() throws SQLException {
+        Properties properties = PropertyFactory.getProperties();
+        dataSource = new DruidDataSource();
+        dataSource.setUrl(properties.getProperty("jdbc.url"));
+        dataSource.setUsername(properties.getProperty("jdbc.username"));
+        dataSource.setPassword(properties.getProperty("jdbc.password"));
+        dataSource.setPoolPreparedStatements(true);
+        dataSource.setMaxPoolPreparedStatementPerConnectionSize(20);
+        dataSource.init();
+    }
+
+    @After
+    public void after() {
+        dataSource.close();
+    }
+
+    @Test
+    public void testSameResult() {
+        IDAllocDao jdbc = new JdbcIDAllocDaoImpl(dataSource);
+        IDAllocDao mybatis = new IDAllocDaoImpl(dataSource);
+        LeafAlloc first = jdbc.updateMaxIdAndGetLeafAlloc(TAG);
+        LeafAlloc second = mybatis.updateMaxIdAndGetLeafAlloc(TAG);
+        Assert.assertEquals(first.getStep(), second.getStep());
+        Assert.assertTrue(second.getMaxId() >= first.getMaxId() + first.getStep());
+        LeafAlloc custom = new LeafAlloc();
+        custom.setKey(TAG);
+        custom.setStep(7);
+        LeafAlloc third = jdbc.updateMaxIdByCustomStepAndGetLeafAlloc(custom);
+        Assert.assertEquals(7, third.getStep());
+        Assert.assertTrue(third.getMaxId() >= second.getMaxId() + 7);
+        Assert.assertEquals(third.getMaxId(), jdbc.getLeafAlloc(TAG).getMaxId());
+        Assert.assertNull(jdbc.getLeafAlloc(TAG + "-not-exists"));
+        Assert.assertTrue(jdbc.getAllTags().contains(TAG));
+    }
+
+    @Ignore("压测，向共享的测试库发送大量 UPDATE，需要时手动运行")
+    @Test
+    public void benchmark() {
+        IDAllocDao mybatis = new IDAllocDaoImpl(dataSource);
+        IDAllocDao jdbc = new JdbcIDAllocDaoImpl(dataSource);
+        run("mybatis", mybatis, WARM_UP);
+        run("jdbc", jdbc, WARM_UP);
+        System.out.println(run("mybatis", mybatis, ROUNDS));
+        System.out.println(run("jdbc", jdbc, ROUNDS));
+        System.out.println(run("mybatis", mybatis, ROUNDS));
+        System.out.println(run("jdbc", jdbc, ROUNDS));
+    }
+
+    private String run(String name, IDAllocDao dao, int rounds) {
+        LeafAlloc custom = new LeafAlloc();
+        custom.setKey(TAG);
+        custom.setStep(1000);
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            dao.updateMaxIdAndGetLeafAlloc(TAG);
+            dao.updateMaxIdByCustomStepAndGetLeafAlloc(custom);
+        }
+        long elapsed = System.nanoTime() - start;
+        return String.format("%-8s %d rounds, updateMaxId + customStep avg %.1f us/round",
+                name, rounds, elapsed / 1000.0 / rounds);
+    }
+}
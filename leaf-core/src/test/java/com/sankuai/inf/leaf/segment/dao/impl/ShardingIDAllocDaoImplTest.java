@@ -0,0 +1,124 @@
+package com.sankuai.inf.leaf.segment.dao.impl;
+
+import com.sankuai.inf.leaf.segment.StubIDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class ShardingIDAllocDaoImplTest {
+    List<File> journals = new ArrayList<File>();
+    List<FileIDAllocDaoImpl> fileDaos = new ArrayList<FileIDAllocDaoImpl>();
+
+    @Before
+    public void before() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            File journal = File.createTempFile("leaf-shard-" + i, ".journal");
+            journal.delete();
+            journals.add(journal);
+            fileDaos.add(new FileIDAllocDaoImpl(journal.getPath()));
+        }
+    }
+
+    @After
+    public void after() {
+        for (FileIDAllocDaoImpl dao : fileDaos) {
+            dao.close();
+        }
+        for (File journal : journals) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * 同样的分片数下路由稳定；增加一个分片时只有约 1/N 的 tag 迁移，且都迁移到新分片
+     */
+    @Test
+    public void testConsistentRouting() {
+        ShardingIDAllocDaoImpl four = sharding(4);
+        ShardingIDAllocDaoImpl fourAgain = sharding(4);
+        ShardingIDAllocDaoImpl five = sharding(5);
+        int tags = 20000;
+        int moved = 0;
+        int[] counts = new int[4];
+        for (int i = 0; i < tags; i++) {
+            String tag = "biz-tag-" + i;
+            int index = four.getShardIndex(tag);
+            Assert.assertEquals(index, fourAgain.getShardIndex(tag));
+            counts[index]++;
+            int newIndex = five.getShardIndex(tag);
+            if (newIndex != index) {
+                moved++;
+                Assert.assertEquals(4, newIndex);
+            }
+        }
+        double movedRatio = (double) moved / tags;
+        Assert.assertTrue("moved " + movedRatio, movedRatio > 0.15 && movedRatio < 0.25);
+        for (int count : counts) {
+            double ratio = (double) count / tags;
+            Assert.assertTrue("shard ratio " + ratio, ratio > 0.18 && ratio < 0.32);
+        }
+        four.shutdown();
+        fourAgain.shutdown();
+        five.shutdown();
+    }
+
+    /**
+     * 单个 tag 的分配路由到所在分片，查询所有 tag 和批量分配覆盖所有分片
+     */
+    @Test
+    public void testRouteToShard() {
+        ShardingIDAllocDaoImpl dao = new ShardingIDAllocDaoImpl(new ArrayList<IDAllocDao>(fileDaos));
+        List<LeafAlloc> temps = new ArrayList<LeafAlloc>();
+        for (int i = 0; i < 30; i++) {
+            String tag = "tag-" + i;
+            fileDaos.get(dao.getShardIndex(tag)).createTagIfAbsent(tag, 0, 10);
+            LeafAlloc temp = new LeafAlloc();
+            temp.setKey(tag);
+            temp.setStep(5);
+            temps.add(temp);
+        }
+        Assert.assertEquals(30, new HashSet<String>(dao.getAllTags()).size());
+        Assert.assertEquals(10, dao.updateMaxIdAndGetLeafAlloc("tag-7").getMaxId());
+        Assert.assertEquals(10, dao.getLeafAlloc("tag-7").getMaxId());
+        List<LeafAlloc> result = dao.updateMaxIdByCustomStepAndGetLeafAllocs(temps);
+        Assert.assertEquals(30, result.size());
+        for (LeafAlloc leafAlloc : result) {
+            Assert.assertEquals("tag-7".equals(leafAlloc.getKey()) ? 15 : 5, leafAlloc.getMaxId());
+        }
+        dao.shutdown();
+    }
+
+    /**
+     * 任一分片查询失败时整体失败，避免全量同步把该分片的 tag 当作已删除
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testFanOutFailure() {
+        IDAllocDao failing = new StubIDAllocDao(fileDaos.get(2)) {
+            @Override
+            public List<String> getAllTags() {
+                throw new IllegalStateException("shard unavailable");
+            }
+        };
+        ShardingIDAllocDaoImpl dao = new ShardingIDAllocDaoImpl(Arrays.asList(fileDaos.get(0), fileDaos.get(1), failing));
+        try {
+            dao.getAllTags();
+        } finally {
+            dao.shutdown();
+        }
+    }
+
+    private ShardingIDAllocDaoImpl sharding(int shards) {
+        return new ShardingIDAllocDaoImpl(Collections.<IDAllocDao>nCopies(shards, fileDaos.get(0)));
+    }
+}
@@ -0,0 +1,106 @@
+package com.sankuai.inf.leaf.segment.model;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SegmentBufferTest {
+    SegmentBuffer buffer;
+    Segment current;
+
+    @Before
+    public void before() {
+        buffer = new SegmentBuffer();
+        buffer.setKey("test");
+        current = new Segment(buffer, 10, 10, 10, 0);
+        buffer.setCurrent(current);
+    }
+
+    /**
+     * 没有装载在运行或下一个号段已就绪时不等待
+     */
+    @Test
+    public void testNoWait() {
+        buffer.awaitNext(current, 5000);
+        Assert.assertEquals(0, buffer.getWaitCount());
+        buffer.getThreadRunning().set(true);
+        buffer.appendSegment(new Segment(buffer, 10, 20, 10, 0));
+        buffer.awaitNext(current, 5000);
+        Assert.assertEquals(0, buffer.getWaitCount());
+        Assert.assertTrue(buffer.switchToNext(current));
+        Assert.assertEquals(20, buffer.getCurrent().getMax());
+    }
+
+    /**
+     * 装载线程链接新号段后唤醒所有等待的线程
+     */
+    @Test
+    public void testSignalOnAppend() throws Exception {
+        buffer.getThreadRunning().set(true);
+        Thread[] waiters = startWaiters(4, 5000);
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        buffer.appendSegment(new Segment(buffer, 10, 20, 10, 0));
+        buffer.signalWaiters();
+        joinAll(waiters);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        Assert.assertEquals(4, buffer.getWaitCount());
+    }
+
+    /**
+     * 装载失败、没有链接新号段时，结束装载也要唤醒等待的线程
+     */
+    @Test
+    public void testSignalOnFinish() throws Exception {
+        buffer.getThreadRunning().set(true);
+        Thread[] waiters = startWaiters(2, 5000);
+        Thread.sleep(50);
+        long start = System.nanoTime();
+        buffer.getThreadRunning().set(false);
+        buffer.signalWaiters();
+        joinAll(waiters);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        Assert.assertFalse(buffer.switchToNext(current));
+        Assert.assertEquals(2, buffer.getWaitCount());
+    }
+
+    /**
+     * 没有唤醒时等待到超时返回，并记录等待时间
+     */
+    @Test
+    public void testTimeout() {
+        buffer.getThreadRunning().set(true);
+        long start = System.nanoTime();
+        buffer.awaitNext(current, 50);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+        Assert.assertEquals(1, buffer.getWaitCount());
+        Assert.assertTrue(buffer.getWaitTimeMillis() >= 50);
+        Assert.assertFalse(buffer.switchToNext(current));
+    }
+
+    private Thread[] startWaiters(int n, final long timeoutMillis) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(n);
+        Thread[] waiters = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            waiters[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    buffer.awaitNext(current, timeoutMillis);
+                }
+            });
+            waiters[i].start();
+        }
+        started.await();
+        return waiters;
+    }
+
+    private static void joinAll(Thread[] threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
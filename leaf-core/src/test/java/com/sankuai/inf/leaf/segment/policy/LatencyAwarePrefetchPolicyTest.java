@@ -0,0 +1,47 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyAwarePrefetchPolicyTest {
+
+    /**
+     * 没有速率或装载耗时样本时按固定比例，剩余 90% 时装载
+     */
+    @Test
+    public void testFallback() {
+        LatencyAwarePrefetchPolicy policy = new LatencyAwarePrefetchPolicy(3);
+        Assert.assertEquals(900, policy.prefetchIdle(buffer(0, 10), 1000));
+        Assert.assertEquals(900, policy.prefetchIdle(buffer(1000, 0), 1000));
+        Assert.assertEquals(900, policy.prefetchIdle(buffer(Double.NaN, 10), 1000));
+    }
+
+    /**
+     * 阈值为装载期间预计发出的 ID 数乘以 safetyFactor，并夹在 [minIdleRatio * step, step] 之间
+     */
+    @Test
+    public void testBounds() {
+        LatencyAwarePrefetchPolicy policy = new LatencyAwarePrefetchPolicy(3);
+        Assert.assertEquals(300, policy.prefetchIdle(buffer(1000, 100), 1000));
+        Assert.assertEquals(100, policy.prefetchIdle(buffer(1000, 10), 1000));
+        Assert.assertEquals(1000, policy.prefetchIdle(buffer(1e6, 100), 1000));
+        Assert.assertEquals(1000, policy.prefetchIdle(buffer(Double.POSITIVE_INFINITY, 100), 1000));
+    }
+
+    static SegmentBuffer buffer(final double rate, final double loadLatencyMillis) {
+        SegmentBuffer buffer = new SegmentBuffer() {
+            @Override
+            public double getRate() {
+                return rate;
+            }
+
+            @Override
+            public double getLoadLatencyMillis() {
+                return loadLatencyMillis;
+            }
+        };
+        buffer.setKey("test");
+        return buffer;
+    }
+}
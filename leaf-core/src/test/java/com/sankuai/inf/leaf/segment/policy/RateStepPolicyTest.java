@@ -0,0 +1,54 @@
+package com.sankuai.inf.leaf.segment.policy;
+
+import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RateStepPolicyTest {
+
+    /**
+     * 没有速率样本时按 DurationStepPolicy 调整，号段很快发完则步长翻倍
+     */
+    @Test
+    public void testFallback() {
+        RateStepPolicy policy = new RateStepPolicy(60);
+        Assert.assertEquals(200, policy.nextStep(buffer(0, 100, 100, 1000)));
+        Assert.assertEquals(200, policy.nextStep(buffer(Double.NaN, 100, 100, 1000)));
+    }
+
+    /**
+     * 步长为速率乘以 horizonSeconds，并夹在 [minStep, maxStep] 之间
+     */
+    @Test
+    public void testClamp() {
+        RateStepPolicy policy = new RateStepPolicy(60);
+        Assert.assertEquals(600, policy.nextStep(buffer(10, 100, 100, 1000)));
+        Assert.assertEquals(100, policy.nextStep(buffer(0.1, 500, 100, 1000)));
+        Assert.assertEquals(1000, policy.nextStep(buffer(100, 500, 100, 1000)));
+    }
+
+    /**
+     * rate * horizonSeconds 超过 int 范围时不溢出，取 maxStep
+     */
+    @Test
+    public void testOverflow() {
+        RateStepPolicy policy = new RateStepPolicy(900);
+        Assert.assertEquals(1000000, policy.nextStep(buffer(1e9, 1000, 1000, 1000000)));
+        Assert.assertEquals(1000000, policy.nextStep(buffer(Double.POSITIVE_INFINITY, 1000, 1000, 1000000)));
+    }
+
+    static SegmentBuffer buffer(final double rate, int step, int minStep, int maxStep) {
+        SegmentBuffer buffer = new SegmentBuffer() {
+            @Override
+            public double getRate() {
+                return rate;
+            }
+        };
+        buffer.setKey("test");
+        buffer.setStep(step);
+        buffer.setMinStep(minStep);
+        buffer.setMaxStep(maxStep);
+        buffer.setUpdateTimestamp(System.currentTimeMillis());
+        return buffer;
+    }
+}
@@ -1,11 +1,20 @@
 package com.sankuai.inf.leaf.snowflake;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IDRange;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.snowflake.clock.Clock;
+import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.Collections;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SnowflakeIDGenImplTest {
     @Test
@@ -18,4 +27,219 @@ public class SnowflakeIDGenImplTest {
             System.out.println(r);
         }
     }
+
+    @Test
+    public void testConcurrentUnique() throws InterruptedException {
+        final IDGen idGen = new SnowflakeIDGenImpl(7);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50000; j++) {
+                        Result r = idGen.get("a");
+                        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                        Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                        // workerId 位于序列号之上的 10 位
+                        Assert.assertEquals(7, (r.getId() >> 12) & 1023);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(threads.length * 50000, ids.size());
+    }
+
+    @Test
+    public void testGetBatch() throws InterruptedException {
+        final IDGen idGen = new SnowflakeIDGenImpl(3);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final boolean batch = i % 2 == 0;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 200; j++) {
+                        if (batch) {
+                            BatchResult r = idGen.getBatch("a", 5000);
+                            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                            Assert.assertEquals(5000, r.size());
+                            for (IDRange range : r.getRanges()) {
+                                // 号段不跨毫秒
+                                Assert.assertEquals(range.getStart() >> 22, (range.getEnd() - 1) >> 22);
+                            }
+                            for (long id : r.toArray()) {
+                                Assert.assertTrue("duplicate id " + id, ids.add(id));
+                            }
+                        } else {
+                            Result r = idGen.get("a");
+                            Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(2 * 200 * 5000 + 2 * 200, ids.size());
+    }
+
+    @Test
+    public void testClockBackwardsBorrow() {
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(5);
+        idGen.setClock(clock);
+        idGen.setBorrowBudgetMillis(10);
+        long t = clock.now;
+        long last = idGen.get("a").getId();
+        // 回拨 5 毫秒，继续使用 t 发号，序列号用完后顺延到 t + 1
+        clock.now = t - 5;
+        for (int i = 0; i < 5000; i++) {
+            Result r = idGen.get("a");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertTrue(r.getId() > last);
+            last = r.getId();
+        }
+        Assert.assertEquals(t + 1, idGen.getLayout().timestampOf(last));
+        Assert.assertEquals(6, idGen.getLeadMillis());
+        Assert.assertEquals(6, idGen.getMaxLeadMillis());
+        Assert.assertEquals(5000, idGen.getBorrowedCount());
+        // 超过借用上限
+        clock.now = t - 20;
+        Assert.assertEquals(-3, idGen.get("a").getId());
+        Assert.assertEquals(1, idGen.getBorrowRejectedCount());
+        // 真实时间追上后恢复正常
+        clock.now = t + 2;
+        Assert.assertEquals(t + 2, idGen.getLayout().timestampOf(idGen.get("a").getId()));
+        Assert.assertEquals(0, idGen.getLeadMillis());
+        Assert.assertEquals(5000, idGen.getBorrowedCount());
+    }
+
+    @Test
+    public void testBorrowInitWait() {
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(5);
+        idGen.setBorrowBudgetMillis(50);
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(idGen.init());
+        Assert.assertTrue(System.currentTimeMillis() - start >= 45);
+    }
+
+    @Test
+    public void testOverflowLead() {
+        ManualClock clock = new ManualClock(System.currentTimeMillis());
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(5);
+        idGen.setClock(clock);
+        idGen.setOverflowLeadMillis(3);
+        long t = clock.now;
+        long last = -1;
+        // 时钟不动，序列号用完后顺延到下一毫秒，不调用 tilNextMillis
+        for (int i = 0; i < 10000; i++) {
+            Result r = idGen.get("a");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertTrue(r.getId() > last);
+            last = r.getId();
+        }
+        Assert.assertEquals(t, clock.now);
+        Assert.assertEquals(2, idGen.getLeadMillis());
+        // 领先达到上限后等待真实时间
+        for (int i = 0; i < 20000; i++) {
+            Result r = idGen.get("a");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            Assert.assertTrue(r.getId() > last);
+            last = r.getId();
+            Assert.assertTrue(idGen.getLeadMillis() <= 3);
+        }
+        Assert.assertTrue(clock.now > t);
+        Assert.assertEquals(3, idGen.getMaxLeadMillis());
+        Assert.assertEquals(0, idGen.getBorrowRejectedCount());
+    }
+
+    private static class ManualClock implements Clock {
+        volatile long now;
+
+        ManualClock(long now) {
+            this.now = now;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public long tilNextMillis(long lastTimestamp) {
+            now = Math.max(now, lastTimestamp + 1);
+            return now;
+        }
+    }
+
+    /**
+     * 对比无锁的 get 与加 synchronized 的 get 在多线程竞争下的吞吐
+     */
+    @Ignore("压测，只输出吞吐，需要时手动运行")
+    @Test
+    public void benchmark() throws InterruptedException {
+        final SnowflakeIDGenImpl lockFree = new SnowflakeIDGenImpl(1);
+        IDGen synced = new IDGen() {
+            @Override
+            public synchronized Result get(String key) {
+                return lockFree.get(key);
+            }
+
+            @Override
+            public BatchResult getBatch(String key, int n) {
+                return lockFree.getBatch(key, n);
+            }
+
+            @Override
+            public boolean init() {
+                return true;
+            }
+        };
+        for (int threads : new int[]{1, 4, 16}) {
+            System.out.println(String.format("threads=%d synchronized %.0f ops/ms, lock-free %.0f ops/ms",
+                    threads, run(synced, threads), run(lockFree, threads)));
+        }
+        // 突发 12000 个请求，对比序列号用完时等待下一毫秒与顺延借用的耗时
+        for (long lead : new long[]{0, 5}) {
+            SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(2);
+            idGen.setOverflowLeadMillis(lead);
+            long start = System.nanoTime();
+            for (int i = 0; i < 12000; i++) {
+                idGen.get("a");
+            }
+            System.out.println(String.format("overflowLead=%dms burst of 12000 took %.2f ms",
+                    lead, (System.nanoTime() - start) / 1000000.0));
+        }
+    }
+
+    private double run(final IDGen idGen, int threadCount) throws InterruptedException {
+        final int rounds = 200000;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rounds; j++) {
+                        idGen.get("a");
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (double) rounds * threadCount / ((System.nanoTime() - start) / 1000000.0);
+    }
 }
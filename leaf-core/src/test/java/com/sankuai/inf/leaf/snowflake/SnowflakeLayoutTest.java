@@ -0,0 +1,47 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SnowflakeLayoutTest {
+
+    @Test
+    public void testDefaultLayout() {
+        // 与原来硬编码的位布局一致
+        long id = SnowflakeLayout.DEFAULT.toId(1567733700834L, 0, 39, 3448);
+        Assert.assertEquals(((1567733700834L - 1288834974657L) << 22) | (39 << 12) | 3448, id);
+        Assert.assertEquals(1567733700834L, SnowflakeLayout.DEFAULT.timestampOf(id));
+        Assert.assertEquals(39, SnowflakeLayout.DEFAULT.workerIdOf(id));
+        Assert.assertEquals(3448, SnowflakeLayout.DEFAULT.sequenceOf(id));
+    }
+
+    @Test
+    public void testCustomLayout() {
+        SnowflakeLayout layout = new SnowflakeLayout(1500000000000L, 41, 2, 5, 15);
+        SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(layout, 3, 17);
+        long before = System.currentTimeMillis();
+        Result r = idGen.get("a");
+        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+        Assert.assertEquals(3, layout.datacenterIdOf(r.getId()));
+        Assert.assertEquals(17, layout.workerIdOf(r.getId()));
+        Assert.assertTrue(layout.timestampOf(r.getId()) >= before);
+        Assert.assertEquals(32768, idGen.getBatch("a", 32768).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyBits() {
+        new SnowflakeLayout(SnowflakeLayout.DEFAULT_EPOCH, 41, 1, 10, 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTimestampExhausted() {
+        new SnowflakeLayout(0, 39, 0, 10, 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWorkerIdOutOfRange() {
+        new SnowflakeIDGenImpl(new SnowflakeLayout(SnowflakeLayout.DEFAULT_EPOCH, 41, 0, 5, 17), 0, 32);
+    }
+}
@@ -0,0 +1,105 @@
+package com.sankuai.inf.leaf.snowflake;
+
+import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StripedSnowflakeIDGenImplTest {
+
+    @Test
+    public void testConcurrentUnique() throws InterruptedException {
+        final IDGen idGen = new StripedSnowflakeIDGenImpl(4, 5, 6, 7);
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50000; j++) {
+                            Result r = idGen.get("a");
+                            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                            Assert.assertTrue("duplicate id " + r.getId(), ids.add(r.getId()));
+                            long workerId = (r.getId() >> 12) & 1023;
+                            Assert.assertTrue(workerId >= 4 && workerId <= 7);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+        Assert.assertEquals(threads.length * 50000, ids.size());
+    }
+
+    /**
+     * 按调用轮询条带，单个线程连续发号也会用到所有条带
+     */
+    @Test
+    public void testSingleThreadUsesAllStripes() {
+        IDGen idGen = new StripedSnowflakeIDGenImpl(4, 5, 6, 7);
+        Set<Long> workerIds = new HashSet<Long>();
+        for (int i = 0; i < 4; i++) {
+            Result r = idGen.get("a");
+            Assert.assertEquals(Status.SUCCESS, r.getStatus());
+            workerIds.add((r.getId() >> 12) & 1023);
+        }
+        Assert.assertEquals(4, workerIds.size());
+    }
+
+    /**
+     * 单个 workerID 每毫秒最多 4096 个 ID，条带数增加时吞吐随之增加，直到受限于 CPU
+     */
+    @Ignore("压测，只输出吞吐，需要时手动运行")
+    @Test
+    public void benchmark() throws InterruptedException {
+        for (int stripes : new int[]{1, 2, 4}) {
+            long[] workerIds = new long[stripes];
+            for (int i = 0; i < stripes; i++) {
+                workerIds[i] = i;
+            }
+            IDGen idGen = new StripedSnowflakeIDGenImpl(workerIds);
+            System.out.println(String.format("stripes=%d threads=8 %.0f ops/ms", stripes, run(idGen, 8)));
+        }
+    }
+
+    private double run(final IDGen idGen, int threadCount) throws InterruptedException {
+        final int rounds = 200000;
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < rounds; j++) {
+                        idGen.get("a");
+                    }
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (double) rounds * threadCount / ((System.nanoTime() - start) / 1000000.0);
+    }
+}
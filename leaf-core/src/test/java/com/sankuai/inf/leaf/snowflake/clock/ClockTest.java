@@ -0,0 +1,101 @@
+package com.sankuai.inf.leaf.snowflake.clock;
+
+import com.sankuai.inf.leaf.common.Result;
+import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.snowflake.SnowflakeIDGenImpl;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ClockTest {
+
+    @Test
+    public void testCachedClock() throws InterruptedException {
+        CachedClock clock = new CachedClock(200);
+        try {
+            long start = clock.currentTimeMillis();
+            Assert.assertTrue(Math.abs(System.currentTimeMillis() - start) <= 5);
+            Thread.sleep(20);
+            Assert.assertTrue(clock.currentTimeMillis() > start);
+            Assert.assertTrue(clock.tilNextMillis(start + 10) > start + 10);
+        } finally {
+            clock.close();
+        }
+        // 关闭后退回系统时钟，等待下一毫秒不会卡住
+        long now = clock.currentTimeMillis();
+        Assert.assertTrue(clock.tilNextMillis(now) > now);
+    }
+
+    @Test
+    public void testTilNextMillis() {
+        for (Clock clock : new Clock[]{SystemClock.SPIN, SystemClock.PARK}) {
+            long now = clock.currentTimeMillis();
+            Assert.assertTrue(clock.tilNextMillis(now) > now);
+        }
+    }
+
+    /**
+     * 对比读时钟的开销，以及不同时钟下发号的吞吐和每个 ID 消耗的 CPU 时间
+     */
+    @Ignore("压测，只输出时钟读取耗时，需要时手动运行")
+    @Test
+    public void benchmark() throws InterruptedException {
+        CachedClock cached = new CachedClock();
+        try {
+            Clock[] clocks = new Clock[]{SystemClock.SPIN, SystemClock.PARK, cached};
+            for (Clock clock : clocks) {
+                int rounds = 10000000;
+                long sum = 0;
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    sum += clock.currentTimeMillis();
+                }
+                System.out.println(String.format("%s currentTimeMillis %.1f ns/op (%d)",
+                        clock, (System.nanoTime() - start) / (double) rounds, sum & 1));
+            }
+            for (int threads : new int[]{1, 4}) {
+                for (Clock clock : clocks) {
+                    run(clock, threads);
+                }
+            }
+        } finally {
+            cached.close();
+        }
+    }
+
+    private void run(Clock clock, int threadCount) throws InterruptedException {
+        final SnowflakeIDGenImpl idGen = new SnowflakeIDGenImpl(1);
+        idGen.setClock(clock);
+        final int rounds = 200000;
+        final ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+        final AtomicLong cpuNanos = new AtomicLong();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long cpu = mxBean.getCurrentThreadCpuTime();
+                    for (int j = 0; j < rounds; j++) {
+                        Result r = idGen.get("a");
+                        Assert.assertEquals(Status.SUCCESS, r.getStatus());
+                    }
+                    cpuNanos.addAndGet(mxBean.getCurrentThreadCpuTime() - cpu);
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long total = (long) rounds * threadCount;
+        System.out.println(String.format("threads=%d %s %.0f ops/ms, %.1f cpu ns/op", threadCount, clock,
+                total / ((System.nanoTime() - start) / 1000000.0), cpuNanos.get() / (double) total));
+    }
+}
@@ -5,8 +5,51 @@ public class Constants {
     public static final String LEAF_JDBC_URL = "leaf.jdbc.url";
     public static final String LEAF_JDBC_USERNAME = "leaf.jdbc.username";
     public static final String LEAF_JDBC_PASSWORD = "leaf.jdbc.password";
+    public static final String LEAF_JDBC_SHARDS = "leaf.jdbc.shards";
+    public static final String LEAF_JDBC_PS_CACHE_SIZE = "leaf.jdbc.ps.cache.size";
+    public static final String LEAF_SEGMENT_DAO = "leaf.segment.dao";
+    public static final String LEAF_SEGMENT_FILE_PATH = "leaf.segment.file.path";
+    public static final String LEAF_SEGMENT_FILE_RESERVE = "leaf.segment.file.reserve";
+    public static final String LEAF_SEGMENT_WAIT_TIMEOUT = "leaf.segment.wait.timeout";
+    public static final String LEAF_SEGMENT_MISSING_TTL = "leaf.segment.missing.ttl";
+    public static final String LEAF_SEGMENT_MISSING_MAX = "leaf.segment.missing.max";
+    public static final String LEAF_SEGMENT_SYNC_FULL_INTERVAL = "leaf.segment.sync.full.interval";
+    public static final String LEAF_SEGMENT_SYNC_OVERLAP = "leaf.segment.sync.overlap";
+    public static final String LEAF_SEGMENT_REFILL_WORKERS = "leaf.segment.refill.workers";
+    public static final String LEAF_SEGMENT_REFILL_QUEUE = "leaf.segment.refill.queue";
+    public static final String LEAF_SEGMENT_REFILL_ASYNC = "leaf.segment.refill.async";
+    public static final String LEAF_SEGMENT_REFILL_BATCH_SIZE = "leaf.segment.refill.batch.size";
+    public static final String LEAF_SEGMENT_REFILL_BATCH_WINDOW = "leaf.segment.refill.batch.window";
+    public static final String LEAF_SEGMENT_BUFFER_DEPTH = "leaf.segment.buffer.depth";
+    public static final String LEAF_SEGMENT_SUB_ROWS = "leaf.segment.subrows";
+    public static final String LEAF_SEGMENT_SUB_ROW_SLOW = "leaf.segment.subrow.slow";
+    public static final String LEAF_SEGMENT_LEASE_SIZE = "leaf.segment.lease.size";
+    public static final String LEAF_SEGMENT_BATCH_MAX = "leaf.segment.batch.max";
+    public static final String LEAF_SEGMENT_STEP_POLICY = "leaf.segment.step.policy";
+    public static final String LEAF_SEGMENT_STEP_HORIZON = "leaf.segment.step.horizon";
+    public static final String LEAF_SEGMENT_STEP_MIN = "leaf.segment.step.min";
+    public static final String LEAF_SEGMENT_STEP_MAX = "leaf.segment.step.max";
+    public static final String LEAF_SEGMENT_PREFETCH_POLICY = "leaf.segment.prefetch.policy";
+    public static final String LEAF_SEGMENT_PREFETCH_SAFETY = "leaf.segment.prefetch.safety";
+    public static final String LEAF_SEGMENT_WARMUP_ENABLE = "leaf.segment.warmup.enable";
+    public static final String LEAF_SEGMENT_WARMUP_TAGS = "leaf.segment.warmup.tags";
+    public static final String LEAF_SEGMENT_WARMUP_CONCURRENCY = "leaf.segment.warmup.concurrency";
+    public static final String LEAF_SEGMENT_WARMUP_NEXT = "leaf.segment.warmup.next";
+    public static final String LEAF_SEGMENT_WARMUP_TIMEOUT = "leaf.segment.warmup.timeout";
 
     public static final String LEAF_SNOWFLAKE_ENABLE = "leaf.snowflake.enable";
     public static final String LEAF_SNOWFLAKE_PORT = "leaf.snowflake.port";
     public static final String LEAF_SNOWFLAKE_ZK_ADDRESS = "leaf.snowflake.zk.address";
+    public static final String LEAF_SNOWFLAKE_WORKERS = "leaf.snowflake.workers";
+    public static final String LEAF_SNOWFLAKE_EPOCH = "leaf.snowflake.epoch";
+    public static final String LEAF_SNOWFLAKE_TIMESTAMP_BITS = "leaf.snowflake.bits.timestamp";
+    public static final String LEAF_SNOWFLAKE_DATACENTER_BITS = "leaf.snowflake.bits.datacenter";
+    public static final String LEAF_SNOWFLAKE_WORKER_BITS = "leaf.snowflake.bits.worker";
+    public static final String LEAF_SNOWFLAKE_SEQUENCE_BITS = "leaf.snowflake.bits.sequence";
+    public static final String LEAF_SNOWFLAKE_DATACENTER_ID = "leaf.snowflake.datacenter.id";
+    public static final String LEAF_SNOWFLAKE_BATCH_MAX = "leaf.snowflake.batch.max";
+    public static final String LEAF_SNOWFLAKE_CLOCK = "leaf.snowflake.clock";
+    public static final String LEAF_SNOWFLAKE_CLOCK_TICK = "leaf.snowflake.clock.tick";
+    public static final String LEAF_SNOWFLAKE_BORROW_BUDGET = "leaf.snowflake.borrow.budget";
+    public static final String LEAF_SNOWFLAKE_OVERFLOW_LEAD = "leaf.snowflake.overflow.lead";
 }
@@ -1,7 +1,10 @@
 package com.sankuai.inf.leaf.server.controller;
 
+import com.sankuai.inf.leaf.common.BatchResult;
+import com.sankuai.inf.leaf.common.IDRange;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.Status;
+import com.sankuai.inf.leaf.server.exception.IllegalCountException;
 import com.sankuai.inf.leaf.server.exception.LeafServerException;
 import com.sankuai.inf.leaf.server.exception.NoKeyException;
 import com.sankuai.inf.leaf.server.service.SegmentService;
@@ -11,6 +14,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 @RestController
@@ -47,6 +51,47 @@ public class LeafController {
 
     }
 
+    /**
+     * 批量获取 snowflake 算法生成的 ID，count 不能超过 leaf.snowflake.batch.max。
+     * 默认返回逗号分隔的 ID；format=range 时返回逗号分隔的号段 start:count，号段内的 ID 连续
+     *
+     * @param key
+     * @param count
+     * @param format
+     * @return
+     */
+    @RequestMapping(value = "/api/snowflake/batch/{key}/{count}")
+    public String getSnowflakeIDs(@PathVariable("key") String key, @PathVariable("count") int count,
+                                  @RequestParam(value = "format", required = false) String format) {
+        if (key == null || key.isEmpty()) {
+            throw new NoKeyException();
+        }
+        if (count <= 0 || count > snowflakeService.getBatchMax()) {
+            throw new IllegalCountException();
+        }
+        BatchResult result = snowflakeService.getBatch(key, count);
+        if (result.getStatus().equals(Status.EXCEPTION)) {
+            throw new LeafServerException(result.toString());
+        }
+        StringBuilder sb = new StringBuilder();
+        if ("range".equals(format)) {
+            for (IDRange range : result.getRanges()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(range.getStart()).append(':').append(range.getCount());
+            }
+        } else {
+            for (long id : result.toArray()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(id);
+            }
+        }
+        return sb.toString();
+    }
+
     private String get(@PathVariable("key") String key, Result id) {
         Result result;
         // 参数校验，key 为空，返回错误
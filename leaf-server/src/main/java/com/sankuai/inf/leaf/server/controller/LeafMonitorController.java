@@ -3,8 +3,12 @@ package com.sankuai.inf.leaf.server.controller;
 import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
 import com.sankuai.inf.leaf.server.model.SegmentBufferView;
 import com.sankuai.inf.leaf.segment.model.LeafAlloc;
+import com.sankuai.inf.leaf.segment.model.Segment;
 import com.sankuai.inf.leaf.segment.model.SegmentBuffer;
 import com.sankuai.inf.leaf.server.service.SegmentService;
+import com.sankuai.inf.leaf.server.service.SnowflakeService;
+import com.sankuai.inf.leaf.snowflake.SnowflakeIDGenImpl;
+import com.sankuai.inf.leaf.snowflake.SnowflakeLayout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,6 +22,7 @@ import org.springframework.web.bind.annotation.ResponseBody;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -27,6 +32,9 @@ public class LeafMonitorController {
     @Autowired
     SegmentService segmentService;
 
+    @Autowired
+    SnowflakeService snowflakeService;
+
     @RequestMapping(value = "cache")
     public String getCache(Model model) {
         Map<String, SegmentBufferView> data = new HashMap<>();
@@ -40,21 +48,32 @@ public class LeafMonitorController {
             SegmentBuffer buffer = entry.getValue();
             sv.setInitOk(buffer.isInitOk());
             sv.setKey(buffer.getKey());
-            sv.setPos(buffer.getCurrentPos());
             sv.setNextReady(buffer.isNextReady());
-            sv.setMax0(buffer.getSegments()[0].getMax());
-            sv.setValue0(buffer.getSegments()[0].getValue().get());
-            sv.setStep0(buffer.getSegments()[0].getStep());
+            // segments[0] 为当前号段，segments[1] 为已装载好的下一个号段
+            Segment[] segments = buffer.getSegments();
+            sv.setReady(segments.length - 1);
+            sv.setDepth(buffer.getDepth());
+            sv.setWaitCount(buffer.getWaitCount());
+            sv.setWaitTimeMillis(buffer.getWaitTimeMillis());
+            sv.setMax0(segments[0].getMax());
+            sv.setValue0(segments[0].getValue().get());
+            sv.setStep0(segments[0].getStep());
+            sv.setPrefetchIdle(segments[0].getPrefetchIdle());
+            sv.setRate(buffer.getRate());
+            sv.setLoadLatencyMillis(buffer.getLoadLatencyMillis());
 
-            sv.setMax1(buffer.getSegments()[1].getMax());
-            sv.setValue1(buffer.getSegments()[1].getValue().get());
-            sv.setStep1(buffer.getSegments()[1].getStep());
+            if (segments.length > 1) {
+                sv.setMax1(segments[1].getMax());
+                sv.setValue1(segments[1].getValue().get());
+                sv.setStep1(segments[1].getStep());
+            }
 
             data.put(entry.getKey(), sv);
 
         }
         logger.info("Cache info {}", data);
         model.addAttribute("data", data);
+        model.addAttribute("refill", segmentIDGen.getRefillScheduler());
         return "segment";
     }
 
@@ -71,6 +90,27 @@ public class LeafMonitorController {
     }
 
     /**
+     * 各 workerID 的时钟借用情况，key 为 workerID
+     */
+    @RequestMapping(value = "snowflake")
+    @ResponseBody
+    public Map<String, Map<String, Long>> getSnowflake() {
+        Map<String, Map<String, Long>> data = new LinkedHashMap<>();
+        for (SnowflakeIDGenImpl generator : snowflakeService.getGenerators()) {
+            Map<String, Long> metrics = new LinkedHashMap<>();
+            metrics.put("borrowBudgetMillis", generator.getBorrowBudgetMillis());
+            metrics.put("overflowLeadMillis", generator.getOverflowLeadMillis());
+            metrics.put("leadMillis", generator.getLeadMillis());
+            metrics.put("maxLeadMillis", generator.getMaxLeadMillis());
+            metrics.put("borrowedCount", generator.getBorrowedCount());
+            metrics.put("borrowRejectedCount", generator.getBorrowRejectedCount());
+            data.put(String.valueOf(generator.getWorkerId()), metrics);
+        }
+        return data;
+    }
+
+    /**
+     * 按 leaf.properties 中配置的位布局反解析 snowflake ID，布局有数据中心位时输出 datacenterId。
      * the output is like this:
      * {
      *   "timestamp": "1567733700834(2019-09-06 09:35:00.834)",
@@ -84,17 +124,18 @@ public class LeafMonitorController {
         Map<String, String> map = new HashMap<>();
         try {
             long snowflakeId = Long.parseLong(snowflakeIdStr);
+            SnowflakeLayout layout = snowflakeService.getLayout();
 
-            long originTimestamp = (snowflakeId >> 22) + 1288834974657L;
+            long originTimestamp = layout.timestampOf(snowflakeId);
             Date date = new Date(originTimestamp);
             SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
             map.put("timestamp", String.valueOf(originTimestamp) + "(" + sdf.format(date) + ")");
 
-            long workerId = (snowflakeId >> 12) ^ (snowflakeId >> 22 << 10);
-            map.put("workerId", String.valueOf(workerId));
-
-            long sequence = snowflakeId ^ (snowflakeId >> 12 << 12);
-            map.put("sequenceId", String.valueOf(sequence));
+            if (layout.getDatacenterIdBits() > 0) {
+                map.put("datacenterId", String.valueOf(layout.datacenterIdOf(snowflakeId)));
+            }
+            map.put("workerId", String.valueOf(layout.workerIdOf(snowflakeId)));
+            map.put("sequenceId", String.valueOf(layout.sequenceOf(snowflakeId)));
         } catch (NumberFormatException e) {
             map.put("errorMsg", "snowflake Id反解析发生异常!");
         }
@@ -0,0 +1,8 @@
+package com.sankuai.inf.leaf.server.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(code=HttpStatus.BAD_REQUEST, reason="Count out of range")
+public class IllegalCountException extends RuntimeException {
+}
@@ -9,8 +9,14 @@ public class SegmentBufferView {
     private long value1;
     private int step1;
     private long max1;
-    private int pos;
     private boolean nextReady;
+    private int ready;
+    private int depth;
+    private long waitCount;
+    private long waitTimeMillis;
+    private double rate;
+    private double loadLatencyMillis;
+    private long prefetchIdle;
     private boolean initOk;
 
     public String getKey() {
@@ -69,14 +75,6 @@ public class SegmentBufferView {
         this.max0 = max0;
     }
 
-    public int getPos() {
-        return pos;
-    }
-
-    public void setPos(int pos) {
-        this.pos = pos;
-    }
-
     public boolean isNextReady() {
         return nextReady;
     }
@@ -85,6 +83,62 @@ public class SegmentBufferView {
         this.nextReady = nextReady;
     }
 
+    public int getReady() {
+        return ready;
+    }
+
+    public void setReady(int ready) {
+        this.ready = ready;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    public void setWaitCount(long waitCount) {
+        this.waitCount = waitCount;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    public double getLoadLatencyMillis() {
+        return loadLatencyMillis;
+    }
+
+    public void setLoadLatencyMillis(double loadLatencyMillis) {
+        this.loadLatencyMillis = loadLatencyMillis;
+    }
+
+    public long getPrefetchIdle() {
+        return prefetchIdle;
+    }
+
+    public void setPrefetchIdle(long prefetchIdle) {
+        this.prefetchIdle = prefetchIdle;
+    }
+
+    public long getWaitTimeMillis() {
+        return waitTimeMillis;
+    }
+
+    public void setWaitTimeMillis(long waitTimeMillis) {
+        this.waitTimeMillis = waitTimeMillis;
+    }
+
     public boolean isInitOk() {
         return initOk;
     }
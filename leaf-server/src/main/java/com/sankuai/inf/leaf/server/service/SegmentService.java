@@ -5,24 +5,53 @@ import com.sankuai.inf.leaf.IDGen;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.ZeroIDGen;
+import com.sankuai.inf.leaf.segment.RefillScheduler;
 import com.sankuai.inf.leaf.segment.SegmentIDGenImpl;
 import com.sankuai.inf.leaf.segment.dao.IDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.impl.BlockingAsyncIDAllocDao;
+import com.sankuai.inf.leaf.segment.dao.impl.FileIDAllocDaoImpl;
 import com.sankuai.inf.leaf.segment.dao.impl.IDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.dao.impl.JdbcIDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.dao.impl.ShardingIDAllocDaoImpl;
+import com.sankuai.inf.leaf.segment.policy.DurationStepPolicy;
+import com.sankuai.inf.leaf.segment.policy.LatencyAwarePrefetchPolicy;
+import com.sankuai.inf.leaf.segment.policy.PrefetchPolicy;
+import com.sankuai.inf.leaf.segment.policy.RatioPrefetchPolicy;
+import com.sankuai.inf.leaf.segment.policy.RateStepPolicy;
+import com.sankuai.inf.leaf.segment.policy.StepPolicy;
 import com.sankuai.inf.leaf.server.Constants;
 import com.sankuai.inf.leaf.server.exception.InitException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 @Service("SegmentService")
 public class SegmentService {
 
     private Logger logger = LoggerFactory.getLogger(SegmentService.class);
     IDGen idGen;
-    DruidDataSource dataSource;
+    List<DruidDataSource> dataSources = new ArrayList<>();
+
+    /**
+     * 异步装载时访问数据库的线程池，未开启异步装载时为 null
+     */
+    ExecutorService asyncExecutor;
 
     /**
      * 1. 载入配置文件 leaf.properties；
@@ -40,22 +69,66 @@ public class SegmentService {
         // 是否开启号段模式，默认开启
         boolean flag = Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_ENABLE, "true"));
         if (flag) {
-            // Config dataSource
-            // 创建 Druid 数据库连接池，并配置
-            dataSource = new DruidDataSource();
-            dataSource.setUrl(properties.getProperty(Constants.LEAF_JDBC_URL));
-            dataSource.setUsername(properties.getProperty(Constants.LEAF_JDBC_USERNAME));
-            dataSource.setPassword(properties.getProperty(Constants.LEAF_JDBC_PASSWORD));
-            dataSource.init();
-
             // Config Dao
-            // 初始化 sqlSessionFactory，用于创建 SqlSession
-            IDAllocDao dao = new IDAllocDaoImpl(dataSource);
+            // mysql 为默认的数据库存储，jdbc 为不经过 MyBatis 的数据库存储，file 为本地日志文件存储，不依赖数据库
+            IDAllocDao dao = createDao(properties);
 
             // Config ID Gen
             // 创建 ID 生成器，并初始化
             idGen = new SegmentIDGenImpl();
             ((SegmentIDGenImpl) idGen).setDao(dao);
+            // 号段装载的工作线程数默认与连接池最大连接数一致，排队的装载任务超过 queue 时拒绝
+            int defaultWorkers = 0;
+            for (DruidDataSource dataSource : dataSources) {
+                defaultWorkers += dataSource.getMaxActive();
+            }
+            if (defaultWorkers == 0) {
+                defaultWorkers = RefillScheduler.DEFAULT_WORKERS;
+            }
+            int refillWorkers = Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_REFILL_WORKERS, String.valueOf(defaultWorkers)));
+            int refillQueue = Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_REFILL_QUEUE, String.valueOf(RefillScheduler.DEFAULT_MAX_QUEUE_SIZE)));
+            ((SegmentIDGenImpl) idGen).setRefillScheduler(new RefillScheduler(refillWorkers, refillQueue));
+            // 异步装载号段，同步的 DAO 通过 BlockingAsyncIDAllocDao 适配，在 refillWorkers 个线程中访问数据库，
+            // 每个进行中的分配仍占用一个线程；排队的分配超过 refillQueue 时拒绝，由回调复位装载标记
+            if (Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_REFILL_ASYNC, "false"))) {
+                asyncExecutor = new ThreadPoolExecutor(refillWorkers, refillWorkers, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(refillQueue), new SegmentIDGenImpl.UpdateThreadFactory());
+                ((SegmentIDGenImpl) idGen).setAsyncDao(new BlockingAsyncIDAllocDao(dao, asyncExecutor));
+            }
+            // 一次事务最多合并装载的 key 数及等待合并的时间，默认 1 即不合并
+            ((SegmentIDGenImpl) idGen).setRefillBatchSize(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_REFILL_BATCH_SIZE, "1")));
+            ((SegmentIDGenImpl) idGen).setRefillBatchWindowMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_REFILL_BATCH_WINDOW, "2")));
+            // 当前号段发完时等待异步装载完成的最长时间，单位毫秒
+            ((SegmentIDGenImpl) idGen).setWaitTimeoutMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_WAIT_TIMEOUT, "10")));
+            // 不存在的业务 key 的缓存时间，单位毫秒
+            ((SegmentIDGenImpl) idGen).setMissingTagTtlMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_MISSING_TTL, "1000")));
+            ((SegmentIDGenImpl) idGen).setMaxMissingTags(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_MISSING_MAX, "1000")));
+            // 全量同步业务 key 的间隔和增量同步的时间重叠，单位毫秒
+            ((SegmentIDGenImpl) idGen).setFullSyncIntervalMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_SYNC_FULL_INTERVAL, "600000")));
+            ((SegmentIDGenImpl) idGen).setSyncOverlapMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_SYNC_OVERLAP, "120000")));
+            // 号段环深度，默认 2 即双 buffer，可按业务 key 单独配置，如 leaf.segment.buffer.depth.{biz_tag}=4
+            ((SegmentIDGenImpl) idGen).setBufferDepth(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_BUFFER_DEPTH, "2")));
+            ((SegmentIDGenImpl) idGen).setTagBufferDepths(getTagConfig(properties, Constants.LEAF_SEGMENT_BUFFER_DEPTH));
+            // 每个线程一次租用的 ID 数，可按业务 key 单独配置，如 leaf.segment.lease.size.{biz_tag}=256
+            ((SegmentIDGenImpl) idGen).setLeaseSize(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_LEASE_SIZE, "0")));
+            ((SegmentIDGenImpl) idGen).setTagLeaseSizes(getTagConfig(properties, Constants.LEAF_SEGMENT_LEASE_SIZE));
+            // 一次批量获取的最大 ID 数
+            ((SegmentIDGenImpl) idGen).setMaxBatchSize(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_BATCH_MAX, "10000")));
+            // 热点 key 拆分的子行数，如 leaf.segment.subrows.{biz_tag}=4，数据库中需要有 {biz_tag}#0 到 {biz_tag}#3 四行
+            ((SegmentIDGenImpl) idGen).setTagSubRows(getTagConfig(properties, Constants.LEAF_SEGMENT_SUB_ROWS));
+            ((SegmentIDGenImpl) idGen).setSubRowSlowMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_SUB_ROW_SLOW, "100")));
+            // 步长策略，duration 为根据号段发号耗时翻倍或减半，rate 为根据平滑后的发号速率计算
+            ((SegmentIDGenImpl) idGen).setStepPolicy(createStepPolicy(properties));
+            ((SegmentIDGenImpl) idGen).setMaxStep(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_STEP_MAX, "1000000")));
+            ((SegmentIDGenImpl) idGen).setTagMinSteps(getTagConfig(properties, Constants.LEAF_SEGMENT_STEP_MIN));
+            ((SegmentIDGenImpl) idGen).setTagMaxSteps(getTagConfig(properties, Constants.LEAF_SEGMENT_STEP_MAX));
+            ((SegmentIDGenImpl) idGen).setPrefetchPolicy(createPrefetchPolicy(properties));
+            // 初始化时预热号段，预热完成后才对外提供服务，并发数默认与装载工作线程数一致
+            ((SegmentIDGenImpl) idGen).setWarmUpEnabled(Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_ENABLE, "false")));
+            ((SegmentIDGenImpl) idGen).setWarmUpTags(getTagSet(properties, Constants.LEAF_SEGMENT_WARMUP_TAGS));
+            ((SegmentIDGenImpl) idGen).setWarmUpConcurrency(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_CONCURRENCY, String.valueOf(refillWorkers))));
+            ((SegmentIDGenImpl) idGen).setWarmUpNextSegment(Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_NEXT, "false")));
+            ((SegmentIDGenImpl) idGen).setWarmUpTimeoutMillis(Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_WARMUP_TIMEOUT, "60000")));
             if (idGen.init()) {
                 logger.info("Segment Service Init Successfully");
             } else {
@@ -63,11 +136,151 @@ public class SegmentService {
             }
         } else {
             // 不开启，则返回 ID 为 0
-            idGen = new ZeroIDGen();
+            ZeroIDGen zeroIDGen = new ZeroIDGen();
+            zeroIDGen.setMaxBatchSize(Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_BATCH_MAX, "10000")));
+            idGen = zeroIDGen;
             logger.info("Zero ID Gen Service Init Successfully");
         }
     }
 
+    /**
+     * 根据配置创建 IDAllocDao，默认为 mysql，即通过 MyBatis 访问数据库
+     *
+     * @param properties
+     * @return
+     * @throws SQLException
+     * @throws InitException
+     */
+    private IDAllocDao createDao(Properties properties) throws SQLException, InitException {
+        String type = properties.getProperty(Constants.LEAF_SEGMENT_DAO, "mysql");
+        if ("file".equals(type)) {
+            String path = properties.getProperty(Constants.LEAF_SEGMENT_FILE_PATH, "leaf_alloc.journal");
+            int reserve = Integer.parseInt(properties.getProperty(Constants.LEAF_SEGMENT_FILE_RESERVE, String.valueOf(FileIDAllocDaoImpl.DEFAULT_RESERVE_STEPS)));
+            try {
+                return new FileIDAllocDaoImpl(path, FileIDAllocDaoImpl.DEFAULT_CAPACITY, reserve);
+            } catch (IOException e) {
+                logger.error("open journal {} failed", path, e);
+                throw new InitException("Segment Service Init Fail, cannot open " + path);
+            }
+        }
+        // 分片数大于 1 时，每个分片的连接配置为 leaf.jdbc.url.{i}，用户名和密码未单独配置时使用 leaf.jdbc.username/password
+        int shards = Integer.parseInt(properties.getProperty(Constants.LEAF_JDBC_SHARDS, "1"));
+        if (shards <= 1) {
+            return createDbDao(type, createDataSource(properties, ""));
+        }
+        List<IDAllocDao> daos = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            daos.add(createDbDao(type, createDataSource(properties, "." + i)));
+        }
+        logger.info("Segment dao sharded to {} data sources", shards);
+        return new ShardingIDAllocDaoImpl(daos);
+    }
+
+    /**
+     * 创建访问单个数据源的 IDAllocDao
+     *
+     * @param type jdbc 直接使用 JDBC，其他为 MyBatis
+     * @param dataSource
+     * @return
+     */
+    private IDAllocDao createDbDao(String type, DruidDataSource dataSource) {
+        if ("jdbc".equals(type)) {
+            return new JdbcIDAllocDaoImpl(dataSource);
+        }
+        // 初始化 sqlSessionFactory，用于创建 SqlSession
+        return new IDAllocDaoImpl(dataSource);
+    }
+
+    /**
+     * 创建 Druid 数据库连接池，并配置
+     *
+     * @param properties
+     * @param suffix 分片的配置后缀，不分片时为空
+     * @return
+     * @throws SQLException
+     */
+    private DruidDataSource createDataSource(Properties properties, String suffix) throws SQLException {
+        DruidDataSource dataSource = new DruidDataSource();
+        dataSource.setUrl(properties.getProperty(Constants.LEAF_JDBC_URL + suffix));
+        dataSource.setUsername(properties.getProperty(Constants.LEAF_JDBC_USERNAME + suffix, properties.getProperty(Constants.LEAF_JDBC_USERNAME)));
+        dataSource.setPassword(properties.getProperty(Constants.LEAF_JDBC_PASSWORD + suffix, properties.getProperty(Constants.LEAF_JDBC_PASSWORD)));
+        // 每个连接缓存的 PreparedStatement 数，号段装载只用到几条固定的 SQL，为 0 时不缓存
+        int psCacheSize = Integer.parseInt(properties.getProperty(Constants.LEAF_JDBC_PS_CACHE_SIZE, "20"));
+        if (psCacheSize > 0) {
+            dataSource.setPoolPreparedStatements(true);
+            dataSource.setMaxPoolPreparedStatementPerConnectionSize(psCacheSize);
+        }
+        dataSource.init();
+        dataSources.add(dataSource);
+        return dataSource;
+    }
+
+    /**
+     * 根据配置创建步长策略，默认为 duration
+     *
+     * @param properties
+     * @return
+     */
+    private StepPolicy createStepPolicy(Properties properties) {
+        String policy = properties.getProperty(Constants.LEAF_SEGMENT_STEP_POLICY, "duration");
+        if ("rate".equals(policy)) {
+            // 一个号段期望维持的时间，单位秒
+            long horizon = Long.parseLong(properties.getProperty(Constants.LEAF_SEGMENT_STEP_HORIZON, "900"));
+            return new RateStepPolicy(horizon);
+        }
+        return new DurationStepPolicy();
+    }
+
+    /**
+     * 根据配置创建预装载策略，默认为 ratio，与升级前的行为一致
+     *
+     * @param properties
+     * @return
+     */
+    private PrefetchPolicy createPrefetchPolicy(Properties properties) {
+        String policy = properties.getProperty(Constants.LEAF_SEGMENT_PREFETCH_POLICY, "ratio");
+        if ("latency".equals(policy)) {
+            // 装载耗时的放大倍数
+            double safety = Double.parseDouble(properties.getProperty(Constants.LEAF_SEGMENT_PREFETCH_SAFETY, "3"));
+            return new LatencyAwarePrefetchPolicy(safety);
+        }
+        return new RatioPrefetchPolicy();
+    }
+
+    /**
+     * 解析按业务 key 单独配置的参数，配置名为 {prefix}.{biz_tag}
+     *
+     * @param properties
+     * @param prefix 参数名
+     * @return key 为 biz_tag
+     */
+    private Map<String, Integer> getTagConfig(Properties properties, String prefix) {
+        Map<String, Integer> config = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix + ".")) {
+                config.put(name.substring(prefix.length() + 1), Integer.parseInt(properties.getProperty(name)));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * 解析逗号分隔的业务 key 列表，未配置时返回空集合
+     *
+     * @param properties
+     * @param name 参数名
+     * @return
+     */
+    private Set<String> getTagSet(Properties properties, String name) {
+        Set<String> tags = new HashSet<>();
+        for (String tag : properties.getProperty(name, "").split(",")) {
+            if (!tag.trim().isEmpty()) {
+                tags.add(tag.trim());
+            }
+        }
+        return tags;
+    }
+
     /**
      * 根据 key 获取 id，key 为数据库对应的 biz_tag
      * @param key
@@ -77,6 +290,20 @@ public class SegmentService {
         return idGen.get(key);
     }
 
+    /**
+     * 关闭装载调度器和异步装载的线程池
+     */
+    @PreDestroy
+    public void close() {
+        SegmentIDGenImpl segmentIDGen = getIdGen();
+        if (segmentIDGen != null) {
+            segmentIDGen.getRefillScheduler().shutdown();
+        }
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
+    }
+
     /**
      * 获取 ID 生成器，如果不是 SegmentIDGenImpl 的实例，则返回 null
      * @return
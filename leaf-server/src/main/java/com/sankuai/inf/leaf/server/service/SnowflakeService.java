@@ -1,16 +1,26 @@
 package com.sankuai.inf.leaf.server.service;
 
 import com.sankuai.inf.leaf.IDGen;
+import com.sankuai.inf.leaf.common.BatchResult;
 import com.sankuai.inf.leaf.common.PropertyFactory;
 import com.sankuai.inf.leaf.common.Result;
 import com.sankuai.inf.leaf.common.ZeroIDGen;
 import com.sankuai.inf.leaf.server.Constants;
 import com.sankuai.inf.leaf.server.exception.InitException;
 import com.sankuai.inf.leaf.snowflake.SnowflakeIDGenImpl;
+import com.sankuai.inf.leaf.snowflake.SnowflakeLayout;
+import com.sankuai.inf.leaf.snowflake.StripedSnowflakeIDGenImpl;
+import com.sankuai.inf.leaf.snowflake.clock.CachedClock;
+import com.sankuai.inf.leaf.snowflake.clock.Clock;
+import com.sankuai.inf.leaf.snowflake.clock.SystemClock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 @Service("SnowflakeService")
@@ -20,31 +30,142 @@ public class SnowflakeService {
 
     IDGen idGen;
 
+    /**
+     * 一次批量获取的最大 ID 数
+     */
+    int batchMax;
+
+    /**
+     * ID 的位布局，生成和反解析 ID 共用
+     */
+    SnowflakeLayout layout;
+
+    /**
+     * 实际发号的 snowflake 生成器，条带模式下每个条带一个，未开启时为空
+     */
+    List<SnowflakeIDGenImpl> generators = Collections.emptyList();
+
+    /**
+     * 条带模式的生成器，下线时关闭共用的 zookeeper 连接，未开启时为 null
+     */
+    StripedSnowflakeIDGenImpl striped;
+
+    /**
+     * 发号使用的时钟，cached 时钟有后台刷新线程，下线时关闭，未开启时为 null
+     */
+    Clock clock;
+
     public SnowflakeService() throws InitException {
         Properties properties = PropertyFactory.getProperties();
         // 解析参数 leaf.snowflake.enable，是否开启 snowflake 算法
         boolean flag = Boolean.parseBoolean(properties.getProperty(Constants.LEAF_SNOWFLAKE_ENABLE, "true"));
+        batchMax = Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_BATCH_MAX, "10000"));
+        layout = createLayout(properties);
 
         if (flag) {
             // 解析参数，获取 zookeeper 地址，比如 "192.168.1.159:2100,192.168.1.159:2101,192.168.1.159:2102"
             String zkAddress = properties.getProperty(Constants.LEAF_SNOWFLAKE_ZK_ADDRESS);
             // 解析参数，获取 snowflake 端口
             int port = Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_PORT));
-            // 根据 zookeeper 地址和 snowflake 端口生成
-            idGen = new SnowflakeIDGenImpl(zkAddress, port);
+            // 数据中心 ID，布局中没有数据中心位时只能为 0
+            long datacenterId = Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_DATACENTER_ID, "0"));
+            // 本节点申请的 workerID 数，大于 1 时按调用轮询多个 workerID 发号，每毫秒最多发 2^sequenceBits * workers 个 ID
+            int workers = Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_WORKERS, "1"));
+            clock = createClock(properties);
+            // 时钟回拨时逻辑时钟最多领先真实时间的毫秒数，0 表示不借用
+            long borrowBudget = Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_BORROW_BUDGET, "0"));
+            // 序列号用完时逻辑时钟最多领先真实时间的毫秒数，0 表示等待下一毫秒
+            long overflowLead = Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_OVERFLOW_LEAD, "0"));
+            if (workers > 1) {
+                striped = new StripedSnowflakeIDGenImpl(zkAddress, port, workers, layout, datacenterId);
+                striped.setClock(clock);
+                striped.setBorrowBudgetMillis(borrowBudget);
+                striped.setOverflowLeadMillis(overflowLead);
+                generators = striped.getStripes();
+                idGen = striped;
+            } else {
+                // 根据 zookeeper 地址和 snowflake 端口生成
+                SnowflakeIDGenImpl snowflake = new SnowflakeIDGenImpl(zkAddress, port, layout, datacenterId);
+                snowflake.setClock(clock);
+                snowflake.setBorrowBudgetMillis(borrowBudget);
+                snowflake.setOverflowLeadMillis(overflowLead);
+                generators = Collections.singletonList(snowflake);
+                idGen = snowflake;
+            }
             // snowflake 初始化成功
             if(idGen.init()) {
                 logger.info("Snowflake Service Init Successfully");
             } else {
+                // 构造失败时不会调用 close，先停掉 cached 时钟的刷新线程
+                if (clock instanceof CachedClock) {
+                    ((CachedClock) clock).close();
+                }
                 throw new InitException("Snowflake Service Init Fail");
             }
         } else {
             // 不开启 snowflake 算法，则返回 ID 为 0
-            idGen = new ZeroIDGen();
+            ZeroIDGen zeroIDGen = new ZeroIDGen();
+            zeroIDGen.setMaxBatchSize(batchMax);
+            idGen = zeroIDGen;
             logger.info("Zero ID Gen Service Init Successfully");
         }
     }
 
+    /**
+     * 根据配置创建 ID 的位布局，未配置的参数使用默认布局的值，参数不合法时启动失败
+     *
+     * @param properties
+     * @return
+     * @throws InitException
+     */
+    private SnowflakeLayout createLayout(Properties properties) throws InitException {
+        SnowflakeLayout d = SnowflakeLayout.DEFAULT;
+        try {
+            SnowflakeLayout layout = new SnowflakeLayout(
+                    Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_EPOCH, String.valueOf(d.getEpoch()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_TIMESTAMP_BITS, String.valueOf(d.getTimestampBits()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_DATACENTER_BITS, String.valueOf(d.getDatacenterIdBits()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_WORKER_BITS, String.valueOf(d.getWorkerIdBits()))),
+                    Integer.parseInt(properties.getProperty(Constants.LEAF_SNOWFLAKE_SEQUENCE_BITS, String.valueOf(d.getSequenceBits()))));
+            logger.info("Snowflake layout {}", layout);
+            return layout;
+        } catch (IllegalArgumentException e) {
+            logger.error("illegal snowflake layout", e);
+            throw new InitException("Snowflake Service Init Fail, illegal layout: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 根据配置创建发号使用的时钟：
+     * spin 每次读系统时钟、序列号用完时空转等待下一毫秒（默认）；
+     * park 每次读系统时钟、等待下一毫秒时 park；
+     * cached 由后台线程按 leaf.snowflake.clock.tick 微秒刷新缓存的时间
+     *
+     * @param properties
+     * @return
+     * @throws InitException
+     */
+    private Clock createClock(Properties properties) throws InitException {
+        String type = properties.getProperty(Constants.LEAF_SNOWFLAKE_CLOCK, "spin");
+        Clock clock;
+        if ("spin".equalsIgnoreCase(type)) {
+            clock = SystemClock.SPIN;
+        } else if ("park".equalsIgnoreCase(type)) {
+            clock = SystemClock.PARK;
+        } else if ("cached".equalsIgnoreCase(type)) {
+            try {
+                clock = new CachedClock(Long.parseLong(properties.getProperty(Constants.LEAF_SNOWFLAKE_CLOCK_TICK,
+                        String.valueOf(CachedClock.DEFAULT_TICK_MICROS))));
+            } catch (IllegalArgumentException e) {
+                throw new InitException("Snowflake Service Init Fail, illegal clock tick: " + e.getMessage());
+            }
+        } else {
+            throw new InitException("Snowflake Service Init Fail, unknown clock: " + type);
+        }
+        logger.info("Snowflake clock {}", clock);
+        return clock;
+    }
+
     /**
      * 获取 ID 时会先判断机器时间是否发生回拨
      *
@@ -54,4 +175,40 @@ public class SnowflakeService {
     public Result getId(String key) {
         return idGen.get(key);
     }
+
+    /**
+     * 批量获取 count 个 ID，同一毫秒内的 ID 连续，以号段的形式返回
+     *
+     * @param key
+     * @param count
+     * @return
+     */
+    public BatchResult getBatch(String key, int count) {
+        return idGen.getBatch(key, count);
+    }
+
+    /**
+     * 节点下线时停止条带定时上报本机时间并关闭 zookeeper 连接，停止 cached 时钟的刷新线程
+     */
+    @PreDestroy
+    public void close() {
+        if (striped != null) {
+            striped.close();
+        }
+        if (clock instanceof CachedClock) {
+            ((CachedClock) clock).close();
+        }
+    }
+
+    public int getBatchMax() {
+        return batchMax;
+    }
+
+    public SnowflakeLayout getLayout() {
+        return layout;
+    }
+
+    public List<SnowflakeIDGenImpl> getGenerators() {
+        return generators;
+    }
 }
@@ -6,13 +6,44 @@
     <link href="/css/bootstrap.min.css" rel="stylesheet">
 </head>
 <body>
+<#if refill?exists>
+<table class="table table-hover">
+    <thead>
+    <tr>
+        <th>refill workers</th>
+        <th>active</th>
+        <th>queue</th>
+        <th>rejected</th>
+        <th>refills</th>
+        <th>avgRefillMillis</th>
+        <th>avgQueueMillis</th>
+    </tr>
+    </thead>
+    <tbody>
+    <tr>
+        <td>${refill.workers}</td>
+        <td>${refill.activeCount}</td>
+        <td>${refill.queueSize}/${refill.maxQueueSize}</td>
+        <td>${refill.rejectedCount}</td>
+        <td>${refill.refillCount}</td>
+        <td>${refill.avgRefillMillis?string('0.00')}</td>
+        <td>${refill.avgQueueMillis?string('0.00')}</td>
+    </tr>
+    </tbody>
+</table>
+</#if>
 <table class="table table-hover">
     <thead>
     <tr>
         <th>name</th>
         <th>init</th>
         <th>next</th>
-        <th>pos</th>
+        <th>ready/depth</th>
+        <th>waits</th>
+        <th>waitMillis</th>
+        <th>rate</th>
+        <th>loadMillis</th>
+        <th>prefetchIdle</th>
         <th>value0</th>
         <th>max0</th>
         <th>step0</th>
@@ -29,7 +60,12 @@
             <td>${key}</td>
             <td>${data[key].initOk?string('true','false')}</td>
             <td>${data[key].nextReady?string('true','false')}</td>
-            <td>${data[key].pos}</td>
+            <td>${data[key].ready}/${data[key].depth}</td>
+            <td>${data[key].waitCount}</td>
+            <td>${data[key].waitTimeMillis}</td>
+            <td>${data[key].rate?string('0.00')}</td>
+            <td>${data[key].loadLatencyMillis?string('0.00')}</td>
+            <td>${data[key].prefetchIdle}</td>
             <td>${data[key].value0}</td>
             <td>${data[key].max0}</td>
             <td>${data[key].step0}</td>
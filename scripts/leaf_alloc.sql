@@ -6,5 +6,11 @@ CREATE TABLE `leaf_alloc` (
   `step` int(11) NOT NULL,
   `description` varchar(256)  DEFAULT NULL,
   `update_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
-  PRIMARY KEY (`biz_tag`)
-) ENGINE=InnoDB;
\ No newline at end of file
+  `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP,
+  PRIMARY KEY (`biz_tag`),
+  KEY `idx_create_time` (`create_time`)
+) ENGINE=InnoDB;
+
+-- 已有的表升级：增量同步按 create_time 查询新增的 key，只在 INSERT 时写入索引，不增加装载号段的 UPDATE 开销；升级步骤见 README 的升级说明
+-- ALTER TABLE `leaf_alloc` ADD COLUMN `create_time` timestamp NOT NULL DEFAULT CURRENT_TIMESTAMP, ADD KEY `idx_create_time` (`create_time`);
+-- ALTER TABLE `leaf_alloc` DROP KEY `idx_update_time`;
\ No newline at end of file